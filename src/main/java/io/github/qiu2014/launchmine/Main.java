@@ -18,6 +18,7 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -51,6 +52,18 @@ public class Main extends JFrame {
         this.json = new JsonUtils();
         try {
             this.preferencesHandler = new PreferencesUtils();
+            StorageUtils.configure(preferencesHandler.getStorageClass(), Paths.get("./.minecraft"));
+            DownloadScheduler.configure(StorageUtils.limitDownloads(preferencesHandler.getMaxDownloads()),
+                    preferencesHandler.getMaxDownloadsPerHost());
+            NetUtils.configure(preferencesHandler.getRetryPolicy());
+            NetUtils.setBufferSize(preferencesHandler.getDownloadBufferKB());
+            VerificationIndex.setUseXattr(preferencesHandler.getIsVerificationXattr());
+            BackgroundScrubber.configure(preferencesHandler.getScrubIntervalDays(), preferencesHandler.getScrubMBps());
+            BackgroundScrubber.resume();
+            LaunchUtils.setProgressiveLaunch(preferencesHandler.getIsProgressiveLaunch());
+            MirrorUtils.configure(preferencesHandler.getIsUseMirrors(), preferencesHandler.getMirrors());
+            BandwidthLimiter.configure(preferencesHandler.getMaxDownloadKBps(),
+                    preferencesHandler.getGameRunningDownloadKBps());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -639,6 +652,43 @@ public class Main extends JFrame {
 
     static void main(String[] args) {
         Logger logger = LogManager.getLogger();
+
+        // Maintenance of the game directory from the command line, without the window
+        if (args.length > 0 && args[0].equals("--gc")) {
+            List<String> options = List.of(args);
+            StoreCollector.Mode mode = options.contains("--dry-run") ? StoreCollector.Mode.DRY_RUN
+                    : options.contains("--delete") ? StoreCollector.Mode.DELETE : StoreCollector.Mode.QUARANTINE;
+            try {
+                StoreCollector.Report report = StoreCollector.collect(mode);
+                System.out.println(report.files() + " unreferenced files, " + (report.bytes() >> 20) + " MB");
+                System.exit(0);
+            } catch (IOException e) {
+                logger.error("Garbage collection aborted: {}", e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (args.length > 2 && args[0].equals("--export-bundle")) {
+            try {
+                OfflineBundle.Report report = OfflineBundle.export(args[1], Paths.get(args[2]));
+                System.out.println(report.files() + " files, " + report.objects() + " objects, "
+                        + (report.bytes() >> 20) + " MB written to " + args[2]);
+                System.exit(0);
+            } catch (IOException e) {
+                logger.error("Bundle export failed: {}", e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (args.length > 1 && args[0].equals("--import-bundle")) {
+            try {
+                OfflineBundle.Report report = OfflineBundle.importBundle(Paths.get(args[1]));
+                System.out.println(report.written() + " objects installed (" + (report.bytes() >> 20) + " MB), "
+                        + report.skipped() + " already in place");
+                System.exit(0);
+            } catch (IOException e) {
+                logger.error("Bundle import failed: {}", e.getMessage());
+                System.exit(1);
+            }
+        }
         boolean isMacOS = System.getProperty("os.name").toLowerCase().contains("mac");
 
         if (isMacOS) {
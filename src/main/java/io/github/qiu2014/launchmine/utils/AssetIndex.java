@@ -0,0 +1,285 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * The objects of an asset index in packed arrays.
+ * The index is read with a streaming parser straight into a byte array of 20-byte hashes, a long
+ * array of sizes and one UTF-8 blob holding every name, so an index of thousands of objects is a
+ * handful of arrays instead of a tree of nodes and maps. Strings are only made when asked for.
+ */
+public final class AssetIndex {
+    private static final int HASH_BYTES = 20;
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final HexFormat HEX = HexFormat.of();
+
+    private byte[] hashes;
+    private long[] sizes;
+    private byte[] names;
+    /** Start of each name in names, with one extra entry for the end of the last */
+    private int[] nameOffsets;
+    private int count = 0;
+    private boolean virtual = false;
+    private boolean mapToResources = false;
+
+    private AssetIndex(int capacity) {
+        int initial = Math.max(16, capacity);
+        hashes = new byte[initial * HASH_BYTES];
+        sizes = new long[initial];
+        names = new byte[initial * 32];
+        nameOffsets = new int[initial + 1];
+    }
+
+    /**
+     * Read an asset index file
+     * @throws IOException If the file cannot be read or is not an asset index
+     */
+    public static AssetIndex parse(String path) throws IOException {
+        AssetIndex index = new AssetIndex(4096);
+        try (JsonParser parser = jsonFactory.createParser(new File(path))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Not an asset index: " + path);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "objects" -> index.parseObjects(parser, path);
+                    case "virtual" -> index.virtual = value == JsonToken.VALUE_TRUE;
+                    case "map_to_resources" -> index.mapToResources = value == JsonToken.VALUE_TRUE;
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return index;
+    }
+
+    private void parseObjects(JsonParser parser, String path) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Malformed objects in asset index: " + path);
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Malformed asset " + name + " in " + path);
+            }
+            boolean hasHash = false;
+            long size = -1;
+            ensureCapacity();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("hash")) {
+                    // Decode straight from the parser buffer, the hex string is never built
+                    hasHash = parser.getTextLength() == HASH_BYTES * 2
+                            && decodeHex(parser.getTextCharacters(), parser.getTextOffset(), count * HASH_BYTES);
+                } else if (field.equals("size")) {
+                    size = parser.getValueAsLong(-1);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (!hasHash || size < 0) {
+                throw new IOException("Malformed asset " + name + " in " + path);
+            }
+            sizes[count] = size;
+            appendName(name.getBytes(StandardCharsets.UTF_8));
+            count++;
+        }
+    }
+
+    /**
+     * Merge indexes into one holding every distinct object once, under the first name it was found with
+     */
+    public static AssetIndex union(List<AssetIndex> indexes) {
+        int total = 0;
+        for (AssetIndex index : indexes) {
+            total += index.count;
+        }
+        AssetIndex result = new AssetIndex(total);
+        int[] table = newTable(total);
+        for (AssetIndex index : indexes) {
+            result.virtual |= index.virtual;
+            result.mapToResources |= index.mapToResources;
+            for (int i = 0; i < index.count; i++) {
+                int slot = result.probe(table, index.hashes, i * HASH_BYTES);
+                if (table[slot] < 0) {
+                    table[slot] = result.count;
+                    result.addFrom(index, i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The objects of this index that the other one does not have
+     */
+    public AssetIndex minus(AssetIndex other) {
+        return minus(other, i -> true);
+    }
+
+    /**
+     * The objects of this index that the other one does not have, and those it has that fail a check
+     * @param leaveOut Called with the position in this index of each object the other one has,
+     *                whether to leave it out of the result
+     */
+    public AssetIndex minus(AssetIndex other, IntPredicate leaveOut) {
+        int[] table = newTable(other.count);
+        for (int j = 0; j < other.count; j++) {
+            int slot = other.probe(table, other.hashes, j * HASH_BYTES);
+            if (table[slot] < 0) {
+                table[slot] = j;
+            }
+        }
+        AssetIndex result = new AssetIndex(count);
+        result.virtual = virtual;
+        result.mapToResources = mapToResources;
+        for (int i = 0; i < count; i++) {
+            if (table[other.probe(table, hashes, i * HASH_BYTES)] < 0 || !leaveOut.test(i)) {
+                result.addFrom(this, i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The objects whose name passes the filter
+     */
+    public AssetIndex select(Predicate<String> nameFilter) {
+        AssetIndex result = new AssetIndex(count);
+        result.virtual = virtual;
+        result.mapToResources = mapToResources;
+        for (int i = 0; i < count; i++) {
+            if (nameFilter.test(name(i))) {
+                result.addFrom(this, i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of objects. A parsed index counts an object once per name it appears under,
+     * a {@link #union(List)} holds every distinct object once; minus and select keep what they are given.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * The SHA-1 of an object as lowercase hex
+     */
+    public String hash(int i) {
+        return HEX.formatHex(hashes, i * HASH_BYTES, (i + 1) * HASH_BYTES);
+    }
+
+    public long size(int i) {
+        return sizes[i];
+    }
+
+    /**
+     * Sum of the sizes of all objects
+     */
+    public long totalSize() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += sizes[i];
+        }
+        return total;
+    }
+
+    public String name(int i) {
+        return new String(names, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the game reads the assets by name from assets/virtual instead of from the object store
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Whether the game reads the assets by name from the resources folder of the game directory
+     */
+    public boolean isMapToResources() {
+        return mapToResources;
+    }
+
+    private void ensureCapacity() {
+        if (count == sizes.length) {
+            int capacity = sizes.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity * HASH_BYTES);
+            sizes = Arrays.copyOf(sizes, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        }
+    }
+
+    private void appendName(byte[] name) {
+        int start = nameOffsets[count];
+        if (start + name.length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, start + name.length));
+        }
+        System.arraycopy(name, 0, names, start, name.length);
+        nameOffsets[count + 1] = start + name.length;
+    }
+
+    private void addFrom(AssetIndex source, int i) {
+        ensureCapacity();
+        System.arraycopy(source.hashes, i * HASH_BYTES, hashes, count * HASH_BYTES, HASH_BYTES);
+        sizes[count] = source.sizes[i];
+        appendName(Arrays.copyOfRange(source.names, source.nameOffsets[i], source.nameOffsets[i + 1]));
+        count++;
+    }
+
+    /**
+     * An empty open addressing table for up to the given number of objects, holding object numbers
+     */
+    private static int[] newTable(int objects) {
+        int[] table = new int[Integer.highestOneBit(Math.max(16, objects * 2)) << 1];
+        Arrays.fill(table, -1);
+        return table;
+    }
+
+    /**
+     * Find the slot of a hash in a table of objects of this index: the slot holding it, or the empty
+     * slot where it belongs. The leading bytes of a SHA-1 are random enough to use directly.
+     */
+    private int probe(int[] table, byte[] hash, int offset) {
+        int mask = table.length - 1;
+        int slot = leadingInt(hash, offset) & mask;
+        while (table[slot] >= 0 && !Arrays.equals(hashes, table[slot] * HASH_BYTES, (table[slot] + 1) * HASH_BYTES,
+                hash, offset, offset + HASH_BYTES)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean decodeHex(char[] text, int offset, int target) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int high = Character.digit(text[offset + i * 2], 16);
+            int low = Character.digit(text[offset + i * 2 + 1], 16);
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            hashes[target + i] = (byte) (high << 4 | low);
+        }
+        return true;
+    }
+
+    private static int leadingInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+}
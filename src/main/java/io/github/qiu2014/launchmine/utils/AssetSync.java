@@ -0,0 +1,143 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which asset indexes have had every object checked, so syncing a new index only has
+ * to look at the objects none of those indexes has. Upgrading to the next snapshot usually
+ * shares almost every object with the previous one.
+ * An index counts as synced only while its file is unchanged since the sync.
+ * Objects a synced index has are still looked up on disk, one stat each, and checked again when they
+ * are gone or have the wrong size; what the delta saves is hashing them and a download task for each.
+ * Their contents are left to the background scrubber. The union of the synced indexes is kept in
+ * memory while they do not change, so it is parsed once per run instead of once per launch.
+ */
+public class AssetSync {
+    private static Logger syncLogger = LogManager.getLogger();
+    private static final PersistentJsonMap<Entry> entries =
+            new PersistentJsonMap<>("asset_sync.json", "asset sync state", new TypeReference<>() {});
+    /** The synced indexes the cached union was built from */
+    private static Map<String, Entry> unionSource = Map.of();
+    private static AssetIndex union = null;
+
+    /**
+     * An asset index whose objects were all present when it was last synced
+     * @param size Size of the index file at the time
+     * @param modified Modification time of the index file at the time, in milliseconds
+     * @param syncedAt When the sync finished, in milliseconds
+     */
+    public record Entry(long size, long modified, long syncedAt) {
+    }
+
+    /**
+     * Work out which objects of an index still have to be checked
+     * @param assetIndexPath Where the index is stored
+     * @param assets The distinct objects of the index
+     * @return The objects not covered by any synced index, all of them if nothing is synced
+     */
+    public static AssetIndex delta(String assetIndexPath, AssetIndex assets) {
+        Map<String, Entry> synced = getSyncedIndexes();
+        AssetIndex covered = getUnion(synced);
+        AtomicInteger missing = new AtomicInteger();
+        AssetIndex delta = covered == null ? assets : assets.minus(covered, i -> {
+            if (isInStore(assets.hash(i), assets.size(i))) {
+                return true;
+            }
+            missing.incrementAndGet();
+            return false;
+        });
+        syncLogger.info("Asset delta for {}: {} of {} objects to check ({} MB), {} synced indexes, {} of their objects missing",
+                Paths.get(assetIndexPath).getFileName(), delta.count(), assets.count(),
+                delta.totalSize() >> 20, synced.size(), missing.get());
+        return delta;
+    }
+
+    /**
+     * Get the union of the synced indexes, built again only when they changed
+     * @return The union, null if no index is synced
+     */
+    private static synchronized AssetIndex getUnion(Map<String, Entry> synced) {
+        if (synced.isEmpty()) {
+            return null;
+        }
+        if (union == null || !synced.equals(unionSource)) {
+            List<AssetIndex> indexes = new ArrayList<>();
+            for (String path : synced.keySet()) {
+                try {
+                    indexes.add(AssetIndex.parse(path));
+                } catch (IOException e) {
+                    syncLogger.debug("Ignoring synced index {}: {}", path, e.getMessage());
+                }
+            }
+            union = AssetIndex.union(indexes);
+            unionSource = synced;
+        }
+        return union;
+    }
+
+    /**
+     * Whether an object is in the store with its size, contents are not read
+     */
+    private static boolean isInStore(String hash, long size) {
+        try {
+            return Files.size(Paths.get(LaunchUtils.assetObjectPath(hash))) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record that every object of the index is present
+     */
+    public static void markSynced(String assetIndexPath) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(assetIndexPath), BasicFileAttributes.class);
+            entries.put(key(assetIndexPath), new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    System.currentTimeMillis()));
+        } catch (IOException e) {
+            syncLogger.debug("Could not mark {} synced: {}", assetIndexPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Forget every sync, after objects may have been removed from the store
+     */
+    public static void invalidateAll() {
+        entries.replaceAll(Map.of());
+    }
+
+    /**
+     * Get the indexes that are synced and unchanged since
+     */
+    private static Map<String, Entry> getSyncedIndexes() {
+        Map<String, Entry> synced = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.copy().entrySet()) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(Paths.get(entry.getKey()), BasicFileAttributes.class);
+                if (attributes.size() == entry.getValue().size()
+                        && attributes.lastModifiedTime().toMillis() == entry.getValue().modified()) {
+                    synced.put(entry.getKey(), entry.getValue());
+                }
+            } catch (IOException e) {
+                // The index was deleted, it proves nothing any more
+            }
+        }
+        return synced;
+    }
+
+    private static String key(String path) {
+        return Paths.get(path).normalize().toString();
+    }
+}
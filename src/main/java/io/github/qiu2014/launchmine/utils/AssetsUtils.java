@@ -7,9 +7,14 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Class for assets managing
@@ -17,6 +22,16 @@ import java.util.List;
 public class AssetsUtils {
     private static final ObjectMapper objectMapper = new ObjectMapper();
     public static Logger assetsLogger = LogManager.getLogger();
+    private static final String OBJECTS_DIR = "./.minecraft/assets/objects";
+    private static final String VIRTUAL_ASSETS_DIR = "./.minecraft/assets/virtual/";
+    private static volatile LinkMethod linkMethod = LinkMethod.HARD_LINK;
+
+    /**
+     * Ways of putting an object under its name, cheapest first
+     */
+    private enum LinkMethod {
+        HARD_LINK, SYMBOLIC_LINK, COPY
+    }
 
     /**
      * Download all client libraries from the Minecraft version JSON file
@@ -67,7 +82,8 @@ public class AssetsUtils {
 
                 // Create download task
                 String outputPath = outputDir + File.separator + path;
-                downloadTasks.add(new DownloadTask(url, outputPath, name));
+                downloadTasks.add(new DownloadTask(url, outputPath, name,
+                        artifact.path("sha1").asText(null), artifact.path("size").asLong(-1)));
             }
 
             // Also check for classifiers (natives)
@@ -91,7 +107,8 @@ public class AssetsUtils {
                         String path = classifierArtifact.get("path").asText();
 
                         String outputPath = outputDir + File.separator + path;
-                        downloadTasks.add(new DownloadTask(url, outputPath, name + ":" + classifier));
+                        downloadTasks.add(new DownloadTask(url, outputPath, name + ":" + classifier,
+                                classifierArtifact.path("sha1").asText(null), classifierArtifact.path("size").asLong(-1)));
                     }
                 }
             }
@@ -99,13 +116,16 @@ public class AssetsUtils {
 
         // Download all artifacts
         System.out.println("Downloading " + downloadTasks.size() + " libraries...");
+        List<Future<Void>> futures = new ArrayList<>();
         for (DownloadTask task : downloadTasks) {
-            try {
-                downloadArtifact(task);
-            } catch (IOException e) {
-                System.err.println("Failed to download " + task.name + ": " + e.getMessage());
-                // Continue with other downloads even if one fails
-            }
+            futures.add(DownloadScheduler.submit(task.url, () -> downloadArtifact(task)));
+        }
+        // One failed library does not stop the others, every failure is reported once all have finished
+        try {
+            DownloadScheduler.awaitAll(futures);
+        } catch (Exception e) {
+            throw new IOException("Library download failed: " + e.getMessage()
+                    + (e.getSuppressed().length > 0 ? " (and " + e.getSuppressed().length + " more)" : ""), e);
         }
     }
 
@@ -153,7 +173,8 @@ public class AssetsUtils {
                     // Download the artifact
                     System.out.println("Downloading " + name + "...");
                     try {
-                        NetUtils.downloadArtifact(url, outputPath);
+                        NetUtils.downloadArtifact(url, outputPath, artifact.path("sha1").asText(null),
+                                artifact.path("size").asLong(-1), null);
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
@@ -197,7 +218,7 @@ public class AssetsUtils {
             String clientPath = outputDir + File.separator + "client.jar";
             System.out.println("Downloading client JAR (" + size + " bytes, SHA1: " + sha1 + ")...");
             try {
-                NetUtils.downloadArtifact(url, clientPath);
+                NetUtils.downloadArtifact(url, clientPath, sha1, size, null);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -214,7 +235,7 @@ public class AssetsUtils {
             String serverPath = outputDir + File.separator + "server.jar";
             System.out.println("Downloading server JAR (" + size + " bytes, SHA1: " + sha1 + ")...");
             try {
-                NetUtils.downloadArtifact(url, serverPath);
+                NetUtils.downloadArtifact(url, serverPath, sha1, size, null);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -255,7 +276,7 @@ public class AssetsUtils {
 
             System.out.println("Downloading asset index (" + assetIndexSize + " bytes, SHA1: " + assetIndexSha1 + ")...");
             try {
-                NetUtils.downloadArtifact(assetIndexUrl, assetIndexPath);
+                NetUtils.downloadMetadata(assetIndexUrl, assetIndexPath, assetIndexSha1, assetIndexSize);
             } catch (Exception e) {
                 assetsLogger.error(e.getMessage());
             }
@@ -341,17 +362,13 @@ public class AssetsUtils {
      * Helper method to download a single artifact
      * @param task The task to download See {@link AssetsUtils.DownloadTask}
      */
-    private static void downloadArtifact(DownloadTask task) throws IOException {
+    private static void downloadArtifact(DownloadTask task) throws Exception {
         // Create directory structure
         File outputFile = new File(task.outputPath);
         outputFile.getParentFile().mkdirs();
 
         assetsLogger.info("Downloading {}...", task.name);
-        try {
-            NetUtils.downloadArtifact(task.url, task.outputPath);
-        } catch (Exception e) {
-            assetsLogger.error(e.getMessage());
-        }
+        NetUtils.downloadArtifact(task.url, task.outputPath, task.sha1, task.size, null);
         assetsLogger.info("Downloaded: {}", task.outputPath);
     }
 
@@ -386,6 +403,103 @@ public class AssetsUtils {
         return info.toString();
     }
 
+    /**
+     * Get the directory a version reads its assets from
+     * @param assetsId The assets id of the version, e.g. "legacy" or "pre-1.6"
+     * @param index The asset index of the version, null if it is not downloaded
+     * @return The resources folder for map_to_resources indexes, the named tree for virtual ones,
+     *         otherwise the assets root
+     */
+    public static String getGameAssetsDir(String assetsId, AssetIndex index) {
+        if (index != null && index.isMapToResources()) {
+            return "./.minecraft/resources";
+        }
+        if (index != null && index.isVirtual()) {
+            return VIRTUAL_ASSETS_DIR + assetsId;
+        }
+        return "./.minecraft/assets";
+    }
+
+    /**
+     * Build the named asset tree old versions read, out of links into the object store.
+     * Hard links are tried first, then symbolic links, and a copy is only made when the file system
+     * takes neither. Names already pointing at the right object are left alone, so running this
+     * again before every launch is cheap.
+     * @param assetsId The assets id of the version
+     * @param index The asset index, with every name
+     */
+    public static void materializeAssetLayout(String assetsId, AssetIndex index) throws IOException {
+        if (!index.isVirtual() && !index.isMapToResources()) {
+            return;
+        }
+        Path root = Paths.get(getGameAssetsDir(assetsId, index)).toAbsolutePath().normalize();
+        int[] created = new int[LinkMethod.values().length];
+        int unchanged = 0;
+        for (int i = 0; i < index.count(); i++) {
+            String hash = index.hash(i);
+            Path object = Paths.get(OBJECTS_DIR, hash.substring(0, 2), hash).toAbsolutePath().normalize();
+            Path target = root.resolve(index.name(i)).normalize();
+            if (!target.startsWith(root)) {
+                assetsLogger.warn("Skipping asset name outside the asset tree: {}", index.name(i));
+                continue;
+            }
+            if (!Files.exists(object)) {
+                continue;
+            }
+            if (isInPlace(target, object, index.size(i))) {
+                unchanged++;
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            Files.deleteIfExists(target);
+            created[link(target, object).ordinal()]++;
+        }
+        assetsLogger.info("Asset tree {}: {} hard links, {} symbolic links, {} copies, {} already in place",
+                root, created[LinkMethod.HARD_LINK.ordinal()], created[LinkMethod.SYMBOLIC_LINK.ordinal()],
+                created[LinkMethod.COPY.ordinal()], unchanged);
+    }
+
+    private static boolean isInPlace(Path target, Path object, long size) throws IOException {
+        if (!Files.exists(target)) {
+            return false;
+        }
+        if (Files.isSameFile(target, object)) {
+            // A hard link or symbolic link is the object itself
+            return true;
+        }
+        // A copy keeps the modification time of its object, any other file of that size is replaced
+        return !Files.isSymbolicLink(target) && Files.size(target) == size
+                && Files.getLastModifiedTime(target).equals(Files.getLastModifiedTime(object));
+    }
+
+    /**
+     * Link the target to the object with the cheapest method that works, remembering it for the next file
+     */
+    private static LinkMethod link(Path target, Path object) throws IOException {
+        if (linkMethod == LinkMethod.HARD_LINK) {
+            try {
+                Files.createLink(target, object);
+                return LinkMethod.HARD_LINK;
+            } catch (IOException | UnsupportedOperationException e) {
+                // Another file system, or one without hard links
+                assetsLogger.debug("Hard links unavailable ({}), trying symbolic links", e.getMessage());
+                linkMethod = LinkMethod.SYMBOLIC_LINK;
+            }
+        }
+        if (linkMethod == LinkMethod.SYMBOLIC_LINK) {
+            try {
+                Files.createSymbolicLink(target, object);
+                return LinkMethod.SYMBOLIC_LINK;
+            } catch (IOException | UnsupportedOperationException e) {
+                // Windows without the privilege to create them
+                assetsLogger.debug("Symbolic links unavailable ({}), copying", e.getMessage());
+                linkMethod = LinkMethod.COPY;
+            }
+        }
+        Files.copy(object, target, StandardCopyOption.COPY_ATTRIBUTES);
+        return LinkMethod.COPY;
+    }
+
     /**
      * Inner class to represent a download task
      */
@@ -393,11 +507,15 @@ public class AssetsUtils {
         final String url;
         final String outputPath;
         final String name;
+        final String sha1;
+        final long size;
 
-        DownloadTask(String url, String outputPath, String name) {
+        DownloadTask(String url, String outputPath, String name, String sha1, long size) {
             this.url = url;
             this.outputPath = outputPath;
             this.name = name;
+            this.sha1 = sha1;
+            this.size = size;
         }
     }
 
@@ -0,0 +1,187 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-hashes installed files slowly in the background, so corruption that a size check cannot see
+ * is found and repaired without making launches wait for a full hash of everything.
+ * A file verified less than the scrub interval ago is skipped. While a game is running the
+ * scrubber reads at a fraction of its rate on a minimum priority thread, and repairs queue behind
+ * everything else. Files still queued when the launcher exits are saved and picked up at the next start.
+ */
+public class BackgroundScrubber {
+    public static final int DEFAULT_INTERVAL_DAYS = 7;
+    public static final int DEFAULT_MBPS = 32;
+    /** Share of the rate left to the scrubber while a game is running */
+    private static final int GAME_RUNNING_DIVISOR = 8;
+
+    private static Logger scrubberLogger = LogManager.getLogger();
+    private static final Map<String, Item> queue = new LinkedHashMap<>();
+    private static final PersistentJsonMap<Item> savedQueue =
+            new PersistentJsonMap<>("scrub_queue.json", "scrub queue", new TypeReference<>() {});
+    private static Thread worker = null;
+    private static volatile long intervalMillis = TimeUnit.DAYS.toMillis(DEFAULT_INTERVAL_DAYS);
+    private static volatile long bytesPerSecond = DEFAULT_MBPS * 1024L * 1024;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(BackgroundScrubber::save));
+    }
+
+    /**
+     * A file to check, with where to download it again if it turns out corrupt
+     */
+    public record Item(String url, String path, String sha1, long size) {
+    }
+
+    /**
+     * Set how often files are re-hashed and how fast
+     * @param intervalDays Days after which a verified file is hashed again, 0 turns scrubbing off
+     * @param megabytesPerSecond Read rate of the scrubber in MB/s
+     */
+    public static void configure(int intervalDays, int megabytesPerSecond) {
+        intervalMillis = TimeUnit.DAYS.toMillis(Math.max(0, intervalDays));
+        bytesPerSecond = Math.max(1, megabytesPerSecond) * 1024L * 1024;
+        if (intervalDays <= 0) {
+            scrubberLogger.info("Background scrubbing disabled");
+        }
+    }
+
+    /**
+     * Queue the files left over from the last run again
+     */
+    public static void resume() {
+        if (intervalMillis <= 0) {
+            return;
+        }
+        Map<String, Item> items = savedQueue.copy();
+        for (Item item : items.values()) {
+            schedule(item.url(), item.path(), item.sha1(), item.size());
+        }
+        if (!items.isEmpty()) {
+            scrubberLogger.info("Resuming background scrub of {} files", items.size());
+        }
+    }
+
+    /**
+     * Queue a file to be checked in the background. Queuing a file already waiting does nothing.
+     */
+    public static void schedule(String url, String path, String sha1, long size) {
+        if (intervalMillis <= 0 || sha1 == null) {
+            return;
+        }
+        synchronized (queue) {
+            queue.putIfAbsent(key(path), new Item(url, path, sha1, size));
+            if (worker == null) {
+                worker = new Thread(BackgroundScrubber::work, "scrubber");
+                worker.setDaemon(true);
+                worker.start();
+            }
+            queue.notifyAll();
+        }
+    }
+
+    private static void work() {
+        HashUtils.Meter meter = HashUtils.startMeter();
+        int checked = 0;
+        while (true) {
+            Item item;
+            synchronized (queue) {
+                if (queue.isEmpty() && checked > 0) {
+                    meter.report("background scrub of " + checked + " files");
+                    checked = 0;
+                    save();
+                }
+                while (queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (checked == 0) {
+                    meter = HashUtils.startMeter();
+                }
+                // Stays queued until it has been checked, so an exit halfway saves it too
+                item = queue.values().iterator().next();
+            }
+            try {
+                if (scrub(item)) {
+                    checked++;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                scrubberLogger.debug("Could not scrub {}: {}", item.path(), e.getMessage());
+            }
+            synchronized (queue) {
+                queue.remove(key(item.path()), item);
+            }
+        }
+    }
+
+    /**
+     * Hash one file if it is due
+     * @return Whether the file was hashed
+     */
+    private static boolean scrub(Item item) throws IOException, InterruptedException {
+        Path file = Paths.get(item.path());
+        if (!Files.isRegularFile(file) || Files.size(file) != item.size()) {
+            // The next quick validation downloads it again
+            return false;
+        }
+        if (System.currentTimeMillis() - VerificationIndex.lastVerified(file, item.sha1()) < intervalMillis) {
+            return false;
+        }
+
+        boolean gameRunning = BandwidthLimiter.isGameRunning();
+        Thread.currentThread().setPriority(gameRunning ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY - 1);
+        long rate = gameRunning ? bytesPerSecond / GAME_RUNNING_DIVISOR : bytesPerSecond;
+        TimeUnit.MILLISECONDS.sleep(item.size() * 1000 / rate);
+
+        String actualSha1 = HashUtils.sha1(file);
+        if (actualSha1.equalsIgnoreCase(item.sha1())) {
+            VerificationIndex.record(file, item.sha1());
+            return true;
+        }
+
+        scrubberLogger.warn("Corrupt file found by background scrub: {} (expected: {}, got: {}), queuing repair",
+                item.path(), item.sha1(), actualSha1);
+        VerificationIndex.forget(file);
+        repair(item, gameRunning);
+        return true;
+    }
+
+    private static String key(String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    private static void save() {
+        Map<String, Item> items;
+        synchronized (queue) {
+            items = new LinkedHashMap<>(queue);
+        }
+        savedQueue.replaceAll(items);
+    }
+
+    private static void repair(Item item, boolean gameRunning) {
+        DownloadPriority priority = gameRunning ? DownloadPriority.PREFETCH : DownloadPriority.BACKGROUND_REPAIR;
+        DownloadScheduler.submit(MirrorUtils.rewrite(item.url()), priority, () -> {
+            try {
+                NetUtils.downloadArtifact(item.url(), item.path(), item.sha1(), item.size(), null);
+                scrubberLogger.info("Repaired {}", item.path());
+            } catch (Exception e) {
+                scrubberLogger.error("Failed to repair {}: {}", item.path(), e.getMessage());
+            }
+        });
+    }
+}
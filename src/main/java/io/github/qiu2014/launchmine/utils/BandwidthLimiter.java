@@ -0,0 +1,93 @@
+package io.github.qiu2014.launchmine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Token bucket shared by every download, capping the total download rate.
+ * While a game started by the launcher is running a much lower cap applies, so repairs and
+ * installs in the background do not take the bandwidth the game needs.
+ */
+public class BandwidthLimiter {
+    /** 0 means no limit */
+    public static final int DEFAULT_MAX_KBPS = 0;
+    public static final int DEFAULT_GAME_RUNNING_KBPS = 256;
+    /** How much unused bandwidth may be saved up for a burst */
+    private static final double BURST_SECONDS = 0.5;
+
+    private static Logger bandwidthLogger = LogManager.getLogger();
+    private static final Object lock = new Object();
+    private static final AtomicInteger runningGames = new AtomicInteger();
+    private static volatile long maxBytesPerSecond = DEFAULT_MAX_KBPS * 1024L;
+    private static volatile long gameRunningBytesPerSecond = DEFAULT_GAME_RUNNING_KBPS * 1024L;
+    private static double tokens = 0;
+    private static long lastRefill = System.nanoTime();
+
+    /**
+     * Set the caps
+     * @param maxKBps Cap for all downloads together in KB/s, 0 for none
+     * @param gameRunningKBps Cap while a game is running in KB/s, 0 for none
+     */
+    public static void configure(int maxKBps, int gameRunningKBps) {
+        maxBytesPerSecond = Math.max(0, maxKBps) * 1024L;
+        gameRunningBytesPerSecond = Math.max(0, gameRunningKBps) * 1024L;
+        if (maxKBps > 0) {
+            bandwidthLogger.info("Download bandwidth limited to {} KB/s", maxKBps);
+        }
+    }
+
+    /**
+     * Throttle downloads until the game process exits
+     */
+    public static void gameStarted(Process process) {
+        if (runningGames.incrementAndGet() == 1 && gameRunningBytesPerSecond > 0) {
+            bandwidthLogger.info("Game running, limiting downloads to {} KB/s", gameRunningBytesPerSecond / 1024);
+        }
+        process.onExit().thenRun(() -> {
+            if (runningGames.decrementAndGet() == 0) {
+                bandwidthLogger.info("Game exited, downloads back to full speed");
+            }
+        });
+    }
+
+    public static boolean isGameRunning() {
+        return runningGames.get() > 0;
+    }
+
+    /**
+     * Get the cap in effect right now
+     * @return Bytes per second, 0 if there is no cap
+     */
+    public static long getBytesPerSecond() {
+        long rate = maxBytesPerSecond;
+        if (isGameRunning() && gameRunningBytesPerSecond > 0) {
+            rate = rate > 0 ? Math.min(rate, gameRunningBytesPerSecond) : gameRunningBytesPerSecond;
+        }
+        return rate;
+    }
+
+    /**
+     * Take tokens for bytes just received, sleeping until the bucket covers them.
+     * Callers go into debt and wait it off, so a large read does not starve small ones.
+     */
+    public static void acquire(long bytes) throws InterruptedException {
+        long rate = getBytesPerSecond();
+        if (rate <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (lock) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate * BURST_SECONDS, tokens + (now - lastRefill) * rate / 1_000_000_000.0);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1_000_000_000.0 / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.qiu2014.launchmine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops sending requests to a host after several consecutive failures.
+ * While open, requests wait for the cool-down instead of each running into its own timeout.
+ * After a cool-down one probe request is let through; its result closes or re-opens the breaker.
+ */
+public class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 30000;
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private static Logger breakerLogger = LogManager.getLogger();
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String host;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean probeInFlight = false;
+    private long openings = 0;
+
+    private CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Get the breaker guarding a host
+     */
+    public static CircuitBreaker forHost(String host) {
+        return breakers.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    /**
+     * Whether a request to the host may be sent now
+     */
+    public boolean allowRequest() {
+        lock.lock();
+        try {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() - openedAt < OPEN_MILLIS) {
+                        return false;
+                    }
+                    state = State.HALF_OPEN;
+                    probeInFlight = true;
+                    breakerLogger.info("Probing {} after cool-down", host);
+                    return true;
+                default:
+                    // Only one probe at a time while half open
+                    if (probeInFlight) {
+                        return false;
+                    }
+                    probeInFlight = true;
+                    return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a request to the host may be sent, through the cool-down and the probe after it
+     * @param maxOpenings How often the breaker may open again while waiting, each time a failed probe,
+     *                    before giving up on the host
+     * @return Whether a request may be sent, false once the host failed that many probes
+     */
+    public boolean awaitRequest(int maxOpenings) throws InterruptedException {
+        lock.lock();
+        try {
+            long start = openings;
+            while (!allowRequest()) {
+                if (openings - start >= maxOpenings) {
+                    return false;
+                }
+                // Woken by the result of the probe; the time limit only matters if a probe never reports back
+                long remaining = OPEN_MILLIS - (System.currentTimeMillis() - openedAt);
+                changed.await(state == State.OPEN && remaining > 0 ? remaining : OPEN_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordSuccess() {
+        lock.lock();
+        try {
+            if (state != State.CLOSED) {
+                breakerLogger.info("{} is reachable again", host);
+            }
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            probeInFlight = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordFailure() {
+        lock.lock();
+        try {
+            consecutiveFailures++;
+            probeInFlight = false;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+                openings++;
+                breakerLogger.warn("{} failed {} times in a row, pausing requests for {} s",
+                        host, consecutiveFailures, OPEN_MILLIS / 1000);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return state == State.OPEN && System.currentTimeMillis() - openedAt < OPEN_MILLIS;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
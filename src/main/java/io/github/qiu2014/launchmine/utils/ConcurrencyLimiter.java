@@ -0,0 +1,205 @@
+package io.github.qiu2014.launchmine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the requests in flight to one host and tunes the limit while downloads run.
+ * The limit grows while the time to first byte stays close to the best seen, shrinks when it
+ * climbs (requests are queueing somewhere), is halved when the host drops or throttles requests,
+ * and stops growing once more requests no longer bring more throughput.
+ */
+public class ConcurrencyLimiter {
+    private static final int MIN_LIMIT = 1;
+    private static final int INITIAL_LIMIT = 4;
+    /** How much slower than the best response time a response may be before the limit shrinks */
+    private static final double LATENCY_TOLERANCE = 2.0;
+    /** Response time differences below this are jitter, not queueing */
+    private static final double RTT_NOISE_NANOS = 20_000_000;
+    private static final double SMOOTHING = 0.2;
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    /** Throughput has to grow by this much for a larger limit to be kept */
+    private static final double MIN_THROUGHPUT_GAIN = 1.05;
+
+    private static Logger limiterLogger = LogManager.getLogger();
+
+    private final String host;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityWaiters waiters = new PriorityWaiters(lock);
+    private final AtomicLong windowBytes = new AtomicLong();
+
+    private double limit;
+    private int inFlight = 0;
+    private double minRttNanos = -1;
+    private double rttNanos = -1;
+    private long lastDecrease = 0;
+    private long windowStart = System.nanoTime();
+    private double lastThroughput = -1;
+    private double lastWindowLimit;
+    private int reportedLimit;
+
+    public ConcurrencyLimiter(String host, int maxLimit) {
+        this.host = host;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        this.lastWindowLimit = limit;
+        this.reportedLimit = (int) limit;
+    }
+
+    /**
+     * Wait for a free slot; a slot goes to the most urgent waiter first
+     */
+    public void acquire(DownloadPriority priority) throws InterruptedException {
+        lock.lock();
+        try {
+            waiters.await(priority, () -> inFlight >= (int) limit);
+            inFlight++;
+            if (inFlight < (int) limit) {
+                waiters.signalNext();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a slot only if one is free and nobody at least as urgent is waiting for it
+     * @return Whether a slot was taken
+     */
+    public boolean tryAcquire(DownloadPriority priority) {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit || waiters.isWaiting(priority)) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a request more urgent than the given priority is waiting for a slot
+     */
+    public boolean isMoreUrgentWaiting(DownloadPriority priority) {
+        lock.lock();
+        try {
+            return waiters.isMoreUrgentWaiting(priority);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            waiters.signalNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record how long the host took to answer a request with its headers
+     */
+    public void onResponse(long rttNanos) {
+        lock.lock();
+        try {
+            this.rttNanos = this.rttNanos < 0 ? rttNanos : this.rttNanos * 0.8 + rttNanos * 0.2;
+            if (minRttNanos < 0 || rttNanos < minRttNanos) {
+                minRttNanos = rttNanos;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0,
+                    (LATENCY_TOLERANCE * minRttNanos + RTT_NOISE_NANOS) / this.rttNanos));
+            // Only grow when the current limit is actually used, otherwise it drifts up for nothing
+            if (gradient < 1.0 || inFlight * 2 >= limit) {
+                // The square root leaves room for a few queued requests, so the limit keeps probing upwards
+                double target = limit * gradient + Math.sqrt(limit);
+                setLimit(limit * (1 - SMOOTHING) + target * SMOOTHING);
+            }
+            endWindowIfDue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record bytes received from the host
+     */
+    public void onBytes(long bytes) {
+        windowBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Record a request the host dropped, timed out or throttled
+     */
+    public void onDropped() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            // Requests failing together are one congestion event, halve only once per response time
+            long interval = (long) Math.max(rttNanos, WINDOW_NANOS / 10);
+            if (now - lastDecrease > interval) {
+                lastDecrease = now;
+                setLimit(limit * 0.5);
+                if ((int) limit != reportedLimit) {
+                    reportedLimit = (int) limit;
+                    limiterLogger.info("Concurrency for {}: {} after a dropped request", host, reportedLimit);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of requests currently allowed in flight
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void endWindowIfDue() {
+        long now = System.nanoTime();
+        if (now - windowStart < WINDOW_NANOS) {
+            return;
+        }
+        double throughput = windowBytes.getAndSet(0) * 1_000_000_000.0 / (now - windowStart);
+        windowStart = now;
+
+        // More requests than last window without more bytes: the link is full, go back
+        if (lastThroughput > 0 && limit > lastWindowLimit + 1 && throughput < lastThroughput * MIN_THROUGHPUT_GAIN) {
+            setLimit(lastWindowLimit);
+        }
+        lastThroughput = throughput;
+        lastWindowLimit = limit;
+        // Let the baseline follow a path that got slower for good
+        minRttNanos = Math.min(rttNanos, minRttNanos * 1.05);
+
+        if ((int) limit != reportedLimit) {
+            reportedLimit = (int) limit;
+            limiterLogger.info("Concurrency for {}: {} (response time {} ms, {} KB/s)", host, reportedLimit,
+                    (long) (rttNanos / 1_000_000), (long) (throughput / 1024));
+        }
+    }
+
+    private void setLimit(double newLimit) {
+        double old = limit;
+        limit = Math.max(MIN_LIMIT, Math.min(maxLimit, newLimit));
+        if ((int) limit > (int) old) {
+            waiters.signalNext();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk record of transfers that are still in flight.
+ * A transfer whose ".part" file survives a crash or restart can be resumed with an HTTP Range request
+ * as long as its entry is still here.
+ * Starting and finishing a transfer is written at once; progress is written a little later, collected from
+ * all transfers into one write. A crash can lose the last few checkpoints, which only means those bytes are
+ * downloaded again: the journal may lag behind the ".part" file but never runs ahead of it.
+ */
+public class DownloadJournal {
+    private static final PersistentJsonMap<Transfer> transfers =
+            new PersistentJsonMap<>("download_journal.json", "download journal", new TypeReference<>() {});
+
+    /**
+     * A transfer that has been started but not finished
+     * @param url Where the file is downloaded from
+     * @param sha1 The SHA-1 the finished file must have, null if unknown or journaled by an older version
+     * @param size The full size of the file, or -1 if the server did not say
+     * @param etag The ETag of the response, used with If-Range when resuming
+     * @param lastModified The Last-Modified of the response, used when there is no ETag
+     * @param written Bytes of a single-stream transfer flushed to disk at the last checkpoint
+     * @param chunkSize The chunk size of a segmented transfer, 0 for a single stream
+     * @param chunks The chunks of a segmented transfer already on disk
+     */
+    public record Transfer(String url, String sha1, long size, String etag, String lastModified,
+                           long written, long chunkSize, List<Integer> chunks) {
+
+        public Transfer(String url, String sha1, long size, String etag, String lastModified, long written) {
+            this(url, sha1, size, etag, lastModified, written, 0, List.of());
+        }
+
+        @JsonIgnore
+        public boolean isSegmented() {
+            return chunkSize > 0;
+        }
+    }
+
+    /**
+     * Record that a transfer into the destination has started
+     */
+    public static void begin(String destination, Transfer transfer) {
+        transfers.put(key(destination), transfer);
+    }
+
+    /**
+     * Get the transfer recorded for a destination
+     * @return The transfer, or null if nothing is in flight for it
+     */
+    public static Transfer get(String destination) {
+        return transfers.get(key(destination));
+    }
+
+    /**
+     * Record that a chunk of a segmented transfer has been written and flushed to disk
+     */
+    public static void markChunk(String destination, int chunk) {
+        transfers.updateLater(key(destination), transfer -> {
+            List<Integer> chunks = new ArrayList<>(transfer.chunks() != null ? transfer.chunks() : List.of());
+            chunks.add(chunk);
+            return new Transfer(transfer.url(), transfer.sha1(), transfer.size(), transfer.etag(),
+                    transfer.lastModified(), 0, transfer.chunkSize(), chunks);
+        });
+    }
+
+    /**
+     * Record how many bytes of a single-stream transfer have been flushed to disk
+     */
+    public static void checkpoint(String destination, long written) {
+        transfers.updateLater(key(destination), transfer -> new Transfer(transfer.url(), transfer.sha1(), transfer.size(),
+                transfer.etag(), transfer.lastModified(), written));
+    }
+
+    /**
+     * Forget the transfer of a destination, after it finished or had to restart from zero
+     */
+    public static void remove(String destination) {
+        transfers.remove(key(destination));
+    }
+
+    /**
+     * Get every transfer left over from an earlier run
+     * @return A copy of the journal, keyed by destination path
+     */
+    public static Map<String, Transfer> pending() {
+        return transfers.copy();
+    }
+
+    /**
+     * Get the ".part" file a destination is downloaded into
+     */
+    public static Path partFile(String destination) {
+        Path target = Paths.get(destination);
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    private static String key(String destination) {
+        return Paths.get(destination).normalize().toString();
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.qiu2014.launchmine.utils;
+
+/**
+ * How urgently a download is needed, most urgent first.
+ * Queued downloads start in this order, and running downloads pause while more urgent ones run.
+ */
+public enum DownloadPriority {
+    /** Files the game the user just started cannot run without */
+    LAUNCH_CRITICAL,
+    /** An install the user is waiting for */
+    INTERACTIVE,
+    /** Repairs found while validating installed versions in the background */
+    BACKGROUND_REPAIR,
+    /** Files fetched ahead of time that nothing needs yet */
+    PREFETCH;
+
+    public boolean isHigherThan(DownloadPriority other) {
+        return ordinal() < other.ordinal();
+    }
+}
@@ -0,0 +1,516 @@
+package io.github.qiu2014.launchmine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs download tasks concurrently on virtual threads.
+ * The number of tasks in flight is bounded by a global limit and by a limit per host.
+ * The limit per host adapts to how the host copes, up to the configured maximum.
+ * Every task has a {@link DownloadPriority}: queued tasks start most urgent first, and a transfer of a
+ * less urgent task pauses when a more urgent task waits for the permits it holds, giving them back meanwhile.
+ */
+public class DownloadScheduler {
+    public static final int DEFAULT_MAX_DOWNLOADS = 64;
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 32;
+
+    private static Logger schedulerLogger = LogManager.getLogger();
+    private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private static final Map<String, ConcurrencyLimiter> hostLimiters = new ConcurrentHashMap<>();
+    private static volatile PriorityPermits globalPermits = new PriorityPermits(DEFAULT_MAX_DOWNLOADS);
+    private static volatile int maxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+    private static final ThreadLocal<PriorityCell> currentPriority = new ThreadLocal<>();
+    /** The host slot of an extra segment running on this thread, given back instead of the task's permits */
+    private static final ThreadLocal<TaskPermits> segmentPermits = new ThreadLocal<>();
+    private static final AtomicIntegerArray activeTasks = new AtomicIntegerArray(DownloadPriority.values().length);
+    private static final AtomicIntegerArray queuedTasks = new AtomicIntegerArray(DownloadPriority.values().length);
+    /** Guards waiting for a priority class to drain; signalled when a class runs out of tasks or a priority is raised */
+    private static final ReentrantLock priorityLock = new ReentrantLock();
+    private static final Condition priorityChanged = priorityLock.newCondition();
+
+    /**
+     * A unit of work submitted to the scheduler
+     */
+    public interface DownloadTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * The priority of the work on a thread. Shared with the segment threads of the same download,
+     * and raised while a more urgent task waits for the result of the work.
+     */
+    public static class PriorityCell {
+        private volatile DownloadPriority priority;
+        /** The permits of the task the work runs in, null outside of a task */
+        private volatile TaskPermits permits;
+
+        PriorityCell(DownloadPriority priority) {
+            this.priority = priority;
+        }
+
+        public DownloadPriority get() {
+            return priority;
+        }
+
+        public void set(DownloadPriority priority) {
+            this.priority = priority;
+            signalPriorityChange();
+        }
+
+        /**
+         * Raise the priority to at least the given one
+         */
+        public void raiseTo(DownloadPriority other) {
+            synchronized (this) {
+                if (!other.isHigherThan(priority)) {
+                    return;
+                }
+                priority = other;
+            }
+            // A paused transfer may now be as urgent as the work it waits for
+            signalPriorityChange();
+        }
+    }
+
+    /**
+     * Change the concurrency limits. Tasks already running keep the permits they hold.
+     * @param maxDownloads Maximum number of tasks running at the same time
+     * @param maxPerHost Upper bound of the adaptive number of tasks running against the same host
+     */
+    public static void configure(int maxDownloads, int maxPerHost) {
+        int global = Math.max(1, maxDownloads);
+        int perHost = Math.max(1, Math.min(maxPerHost, global));
+        globalPermits = new PriorityPermits(global);
+        maxDownloadsPerHost = perHost;
+        hostLimiters.clear();
+        schedulerLogger.info("Download concurrency: {} total, up to {} per host", global, perHost);
+    }
+
+    /**
+     * Submit a task with the priority of the calling thread
+     * @see #submit(String, DownloadPriority, DownloadTask)
+     */
+    public static Future<Void> submit(String url, DownloadTask task) {
+        return submit(url, currentPriority(), task);
+    }
+
+    /**
+     * Submit a task that talks to the host of the given URL
+     * @param url The URL the task downloads from, used to pick the per-host limit
+     * @param priority How urgently the task is needed, inherited by the tasks it submits
+     * @param task The work to run
+     * @return A future completing when the task has finished
+     */
+    public static Future<Void> submit(String url, DownloadPriority priority, DownloadTask task) {
+        ConcurrencyLimiter perHost = limiterFor(url);
+        return executor.submit(() -> {
+            PriorityCell cell = new PriorityCell(priority);
+            TaskPermits permits = new TaskPermits(globalPermits, perHost, cell);
+            cell.permits = permits;
+            currentPriority.set(cell);
+            try {
+                permits.acquire();
+                task.run();
+            } finally {
+                permits.release();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Run work that submits downloads and waits for them, on the threads of the scheduler.
+     * It holds no permits: it spends its time waiting for its downloads, and permits held meanwhile
+     * would be missing from the very downloads it waits for.
+     * @param priority The priority the downloads it submits inherit
+     * @return A future completing when the work has finished
+     */
+    public static Future<Void> submitCoordinator(DownloadPriority priority, DownloadTask task) {
+        return executor.submit(() -> {
+            runInCell(new PriorityCell(priority), task);
+            return null;
+        });
+    }
+
+    /**
+     * Run work on the calling thread with a priority, which the downloads it submits inherit
+     */
+    public static void runWithPriority(DownloadPriority priority, DownloadTask task) throws Exception {
+        runInCell(new PriorityCell(priority), task);
+    }
+
+    /**
+     * Run work on the calling thread sharing the priority of another thread
+     * @param cell The cell returned by {@link #currentCell()} on that thread
+     */
+    public static void runInCell(PriorityCell cell, DownloadTask task) throws Exception {
+        PriorityCell previous = currentPriority.get();
+        currentPriority.set(cell);
+        try {
+            task.run();
+        } finally {
+            currentPriority.set(previous);
+        }
+    }
+
+    /**
+     * Run an extra connection of a segmented download on the calling thread, if the host of the URL has a
+     * slot free. The connection counts against the limiter of the host like a task of its own, and its
+     * slot is given back while it pauses; the first connection of a download uses the permits of its task.
+     * @param cell The cell of the task the download runs in
+     * @return Whether a slot was free and the segment ran
+     */
+    public static boolean runExtraSegment(String url, PriorityCell cell, DownloadTask segment) throws Exception {
+        ConcurrencyLimiter perHost = limiterFor(url);
+        if (!perHost.tryAcquire(cell.get())) {
+            return false;
+        }
+        TaskPermits permits = TaskPermits.heldHostSlot(perHost, cell);
+        segmentPermits.set(permits);
+        try {
+            runInCell(cell, segment);
+        } finally {
+            segmentPermits.remove();
+            permits.release();
+        }
+        return true;
+    }
+
+    /**
+     * Get the priority of the download running on this thread
+     * @return The priority, {@link DownloadPriority#INTERACTIVE} if none was set
+     */
+    public static DownloadPriority currentPriority() {
+        PriorityCell cell = currentPriority.get();
+        return cell != null ? cell.get() : DownloadPriority.INTERACTIVE;
+    }
+
+    /**
+     * Get the priority cell of this thread, creating one if none was set
+     */
+    public static PriorityCell currentCell() {
+        PriorityCell cell = currentPriority.get();
+        if (cell == null) {
+            cell = new PriorityCell(DownloadPriority.INTERACTIVE);
+            currentPriority.set(cell);
+        }
+        return cell;
+    }
+
+    /**
+     * Pause the transfer on this thread when a more urgent task competes with it: one waiting for the
+     * permits it holds, a slot at the same host or a global permit while none is free, or, while the
+     * download bandwidth is capped, one running at the same time.
+     * Called between reads, so a long background download gives its slot and bandwidth to the version
+     * the user is waiting for. Urgent work it does not compete with gains nothing from a pause.
+     * The permits are given back while paused, and taken again at the priority of the task once no more
+     * urgent task is queued or running.
+     */
+    public static void yieldToHigherPriority() throws InterruptedException {
+        DownloadPriority priority = currentPriority();
+        if (!isHigherPriorityPending(priority)) {
+            return;
+        }
+        TaskPermits permits = heldPermits();
+        if (permits == null || !(permits.isContended(priority) || isSharingBandwidth(priority))) {
+            return;
+        }
+        permits.release();
+        try {
+            priorityLock.lock();
+            try {
+                // Read again on every wake-up, a waiting caller may have raised the priority of this work
+                while (isHigherPriorityPending(currentPriority())) {
+                    priorityChanged.await();
+                }
+            } finally {
+                priorityLock.unlock();
+            }
+        } finally {
+            permits.acquire();
+        }
+    }
+
+    /**
+     * Block on something other than a transfer, such as a retry delay or a download another caller runs,
+     * without holding the permits of the task on this thread. A task waiting on work that still needs
+     * permits would otherwise deadlock once every permit is held by a waiting task.
+     * The permits are taken again at the priority of the task before returning.
+     */
+    public static <T> T withoutPermits(Callable<T> wait) throws Exception {
+        TaskPermits permits = heldPermits();
+        if (permits == null) {
+            return wait.call();
+        }
+        permits.release();
+        try {
+            return wait.call();
+        } finally {
+            permits.acquire();
+        }
+    }
+
+    private static TaskPermits heldPermits() {
+        TaskPermits segment = segmentPermits.get();
+        if (segment != null) {
+            return segment;
+        }
+        PriorityCell cell = currentPriority.get();
+        return cell != null ? cell.permits : null;
+    }
+
+    /**
+     * Wake the paused transfers to check again whether they may continue
+     */
+    private static void signalPriorityChange() {
+        priorityLock.lock();
+        try {
+            priorityChanged.signalAll();
+        } finally {
+            priorityLock.unlock();
+        }
+    }
+
+    /**
+     * Count a task out of a priority class, waking the paused transfers once the class is empty
+     */
+    private static void leave(AtomicIntegerArray tasks, DownloadPriority priority) {
+        if (tasks.decrementAndGet(priority.ordinal()) == 0) {
+            signalPriorityChange();
+        }
+    }
+
+    /**
+     * Whether a more urgent task is running while every transfer draws from one capped bandwidth
+     */
+    private static boolean isSharingBandwidth(DownloadPriority priority) {
+        if (BandwidthLimiter.getBytesPerSecond() <= 0) {
+            return false;
+        }
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (activeTasks.get(i) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHigherPriorityPending(DownloadPriority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (activeTasks.get(i) > 0 || queuedTasks.get(i) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the limiter deciding how many requests may run against the host of a URL
+     */
+    public static ConcurrencyLimiter limiterFor(String url) {
+        return hostLimiters.computeIfAbsent(getHost(url), h -> new ConcurrencyLimiter(h, maxDownloadsPerHost));
+    }
+
+    /**
+     * Get the current adaptive limit of every host downloaded from so far
+     * @return Requests allowed in flight per host, sorted by host
+     */
+    public static Map<String, Integer> getConcurrencyLimits() {
+        Map<String, Integer> limits = new TreeMap<>();
+        hostLimiters.forEach((host, limiter) -> limits.put(host, limiter.getLimit()));
+        return limits;
+    }
+
+    /**
+     * Wait for every future to complete
+     * @param futures The futures returned by {@link #submit(String, DownloadTask)}
+     * @throws Exception The first failure, after all tasks have finished, with the other failures suppressed in it
+     */
+    public static void awaitAll(List<Future<Void>> futures) throws Exception {
+        Exception failure = null;
+        // Tasks waiting on the same download share its exception, it is reported once
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception c ? c : e;
+                if (!seen.add(cause)) {
+                    continue;
+                }
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The permits of a running task. The segment threads of a download share them with its task:
+     * when one of them pauses the permits are given back, and the first one to continue takes them
+     * again, at the priority the task has by then.
+     * The extra connections of a segmented download each hold a host slot only, without a global permit.
+     */
+    private static class TaskPermits {
+        private final ReentrantLock lock = new ReentrantLock();
+        /** Null for the host slot of an extra segment */
+        private final PriorityPermits global;
+        private final ConcurrencyLimiter perHost;
+        private final PriorityCell cell;
+        private boolean holdsHost = false;
+        /** The priority the permits were taken at, null while they are not held */
+        private DownloadPriority activeAs = null;
+
+        TaskPermits(PriorityPermits global, ConcurrencyLimiter perHost, PriorityCell cell) {
+            this.global = global;
+            this.perHost = perHost;
+            this.cell = cell;
+        }
+
+        /**
+         * The host slot of an extra segment, already taken
+         */
+        static TaskPermits heldHostSlot(ConcurrencyLimiter perHost, PriorityCell cell) {
+            TaskPermits permits = new TaskPermits(null, perHost, cell);
+            permits.holdsHost = true;
+            permits.activeAs = cell.get();
+            return permits;
+        }
+
+        /**
+         * Take the permits unless they are held already.
+         * The host permit comes first so tasks waiting on a busy host do not hold global permits.
+         */
+        void acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                if (activeAs != null) {
+                    return;
+                }
+                DownloadPriority priority = cell.get();
+                queuedTasks.incrementAndGet(priority.ordinal());
+                try {
+                    if (!holdsHost) {
+                        perHost.acquire(priority);
+                        holdsHost = true;
+                    }
+                    if (global != null) {
+                        global.acquire(priority);
+                    }
+                } finally {
+                    leave(queuedTasks, priority);
+                }
+                activeAs = priority;
+                // An extra segment is part of a task already counted
+                if (global != null) {
+                    activeTasks.incrementAndGet(priority.ordinal());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Whether a task more urgent than the given priority waits for the host slot or the global permit
+         */
+        boolean isContended(DownloadPriority priority) {
+            return perHost.isMoreUrgentWaiting(priority) || (global != null && global.isMoreUrgentWaiting(priority));
+        }
+
+        /**
+         * Give back whatever permits are held
+         */
+        void release() {
+            lock.lock();
+            try {
+                if (activeAs != null && global != null) {
+                    leave(activeTasks, activeAs);
+                    global.release();
+                }
+                activeAs = null;
+                if (holdsHost) {
+                    perHost.release();
+                    holdsHost = false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A counting semaphore that hands free permits to the most urgent waiter first
+     */
+    private static class PriorityPermits {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityWaiters waiters = new PriorityWaiters(lock);
+        private int available;
+
+        PriorityPermits(int permits) {
+            this.available = permits;
+        }
+
+        void acquire(DownloadPriority priority) throws InterruptedException {
+            lock.lock();
+            try {
+                waiters.await(priority, () -> available == 0);
+                available--;
+                if (available > 0) {
+                    waiters.signalNext();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release() {
+            lock.lock();
+            try {
+                available++;
+                waiters.signalNext();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isMoreUrgentWaiting(DownloadPriority priority) {
+            lock.lock();
+            try {
+                return waiters.isMoreUrgentWaiting(priority);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host != null ? host : "";
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
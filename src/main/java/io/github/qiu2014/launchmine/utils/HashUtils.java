@@ -0,0 +1,179 @@
+package io.github.qiu2014.launchmine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashes files on a pool of platform threads, by default one per core, so verifying thousands of
+ * files keeps every core busy without holding download slots or virtual thread carriers.
+ * Files are read sequentially into large pooled direct buffers. They are not memory-mapped: a
+ * single pass gains nothing from it, and on Windows a mapped file cannot be truncated, replaced or
+ * deleted until the mapping is garbage collected, which is what usually happens right after a hash.
+ */
+public class HashUtils {
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+    /** Files from this size on get their hashing speed logged */
+    private static final long LOG_THRESHOLD = 64L * 1024 * 1024;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private static Logger hashLogger = LogManager.getLogger();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor hashPool = new ThreadPoolExecutor(THREADS, THREADS,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "hash-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Read buffers shared by every hashing thread, pooled since callers may be virtual threads */
+    private static final ConcurrentLinkedQueue<ByteBuffer> readBuffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong hashedBytes = new AtomicLong();
+
+    /**
+     * Change how many files are hashed at the same time.
+     * One per core suits SSDs, a spinning disk is faster reading one file at a time.
+     */
+    public static void setThreads(int threads) {
+        int count = Math.max(1, threads);
+        if (count > hashPool.getMaximumPoolSize()) {
+            hashPool.setMaximumPoolSize(count);
+            hashPool.setCorePoolSize(count);
+        } else {
+            hashPool.setCorePoolSize(count);
+            hashPool.setMaximumPoolSize(count);
+        }
+    }
+
+    /**
+     * Calculate the SHA-1 of a file on the hashing pool, waiting for the result
+     * @return The hash as lowercase hex
+     */
+    public static String sha1(Path file) throws IOException {
+        try {
+            return sha1Async(file).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing " + file);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Queue a file for hashing; many of these run in parallel, one per core
+     * @return The hash as lowercase hex
+     */
+    public static CompletableFuture<String> sha1Async(Path file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                MessageDigest digest = newSha1();
+                update(digest, file, Long.MAX_VALUE);
+                return toHex(digest.digest());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, hashPool);
+    }
+
+    /**
+     * Feed the start of a file into a digest, on the calling thread
+     * @param length How many bytes to hash, the whole file if it is shorter
+     */
+    public static void update(MessageDigest digest, Path file, long length) throws IOException {
+        long start = System.nanoTime();
+        long hashed;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            hashed = read(digest, channel, Math.min(length, channel.size()));
+        }
+        hashedBytes.addAndGet(hashed);
+        if (hashed >= LOG_THRESHOLD) {
+            long nanos = System.nanoTime() - start;
+            hashLogger.debug("Hashed {} ({} MB) at {} MB/s", file.getFileName(), hashed >> 20, megabytesPerSecond(hashed, nanos));
+        }
+    }
+
+    private static long read(MessageDigest digest, FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = readBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+        try {
+            long total = 0;
+            while (total < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - total));
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                total += count;
+            }
+            return total;
+        } finally {
+            readBuffers.offer(buffer);
+        }
+    }
+
+    public static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        return HEX.formatHex(hash);
+    }
+
+    /**
+     * Start measuring how fast files are hashed from now on
+     */
+    public static Meter startMeter() {
+        return new Meter(hashedBytes.get(), System.nanoTime());
+    }
+
+    /**
+     * Bytes hashed since it was started, by any thread
+     */
+    public record Meter(long startBytes, long startNanos) {
+        /**
+         * Log how much was hashed and how fast, if anything was
+         * @param what What was being verified, for the log line
+         */
+        public void report(String what) {
+            long bytes = hashedBytes.get() - startBytes;
+            long nanos = System.nanoTime() - startNanos;
+            if (bytes > 0) {
+                hashLogger.info("Hashed {} MB for {} in {} ms ({} MB/s on {} threads)",
+                        bytes >> 20, what, nanos / 1_000_000, megabytesPerSecond(bytes, nanos), hashPool.getMaximumPoolSize());
+            }
+        }
+    }
+
+    private static String megabytesPerSecond(long bytes, long nanos) {
+        return String.format("%.1f", bytes / 1048576.0 / Math.max(1e-9, nanos / 1e9));
+    }
+}
@@ -0,0 +1,43 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.nio.file.Paths;
+
+/**
+ * Validators of the metadata files on disk, so refreshing them can be a conditional request.
+ * Only the ETag and Last-Modified are kept here, the files themselves are the cached bodies.
+ */
+public class HttpCache {
+    private static final PersistentJsonMap<Entry> entries =
+            new PersistentJsonMap<>("http_cache.json", "HTTP cache", new TypeReference<>() {});
+
+    /**
+     * What the server said about the file when it was last downloaded
+     * @param url Where the file was downloaded from
+     * @param etag The ETag of the response, sent back as If-None-Match
+     * @param lastModified The Last-Modified of the response, sent back as If-Modified-Since
+     */
+    public record Entry(String url, String etag, String lastModified) {
+    }
+
+    /**
+     * Get the validators stored for a destination
+     * @return The entry, or null if the file was never downloaded with validators
+     */
+    public static Entry get(String destination) {
+        return entries.get(key(destination));
+    }
+
+    public static void put(String destination, Entry entry) {
+        entries.put(key(destination), entry);
+    }
+
+    public static void remove(String destination) {
+        entries.remove(key(destination));
+    }
+
+    private static String key(String destination) {
+        return Paths.get(destination).normalize().toString();
+    }
+}
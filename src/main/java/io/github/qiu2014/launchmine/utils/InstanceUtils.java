@@ -13,6 +13,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 public class InstanceUtils {
     private static Logger instanceUtilsLogger = LogManager.getLogger();
@@ -43,11 +44,12 @@ public class InstanceUtils {
     public static void updateVersionManifest() {
         instanceUtilsLogger.info("Downloading version manifest from: {}", VERSION_MANIFEST_URL);
         try {
-            NetUtils.downloadArtifact(VERSION_MANIFEST_URL, VERSION_MANIFEST_FILE);
+            if (NetUtils.downloadMetadata(VERSION_MANIFEST_URL, VERSION_MANIFEST_FILE)) {
+                instanceUtilsLogger.info("Version manifest saved to: {}", VERSION_MANIFEST_FILE);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        instanceUtilsLogger.info("Version manifest saved to: {}", VERSION_MANIFEST_FILE);
 
         // Clear cache so it will be reloaded
         versionsCache = null;
@@ -112,11 +114,12 @@ public class InstanceUtils {
 
         instanceUtilsLogger.info("Downloading version JSON for {}...", versionId);
         try {
-            NetUtils.downloadArtifact(url, filePath);
+            if (NetUtils.downloadMetadata(url, filePath)) {
+                System.out.println("Version JSON saved to: " + filePath);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        System.out.println("Version JSON saved to: " + filePath);
     }
 
     /**
@@ -149,36 +152,48 @@ public class InstanceUtils {
 
         JsonNode versionDetails = objectMapper.readTree(versionJsonFile);
 
+        List<Future<Void>> futures = new ArrayList<>();
+
         // 3. Download client JAR if it exists
         if (versionDetails.has("downloads") && versionDetails.get("downloads").has("client")) {
             JsonNode client = versionDetails.get("downloads").get("client");
             String clientUrl = client.get("url").asText();
+            String clientSha1 = client.get("sha1").asText();
+            long clientSize = client.get("size").asLong();
             String clientPath = String.format("./.minecraft/versions/%s/%s.jar", version.id, version.id);
 
             instanceUtilsLogger.info("Downloading client JAR...");
-            try {
-                NetUtils.downloadArtifact(clientUrl, clientPath);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            instanceUtilsLogger.info("Client JAR saved to: {}", clientPath);
+            futures.add(DownloadScheduler.submit(clientUrl, () -> {
+                NetUtils.downloadArtifact(clientUrl, clientPath, clientSha1, clientSize, null);
+                instanceUtilsLogger.info("Client JAR saved to: {}", clientPath);
+            }));
         }
 
-        // 4. Download assets if requested
+        // 4. Download assets if requested, in parallel with the client JAR
         if (downloadAssets) {
-            downloadAssetsForVersion(versionDetails, version.id);
+            downloadAssetsForVersion(versionDetails, futures);
+        }
+
+        try {
+            DownloadScheduler.awaitAll(futures);
+        } catch (Exception e) {
+            throw new IOException("Failed to process version " + version.id + ": " + e.getMessage(), e);
         }
 
         instanceUtilsLogger.info("Version {} processing completed!", version.id);
     }
 
     /**
-     * Download assets for a version
+     * Download assets for a version.
+     * Only the download itself runs as a scheduler task, preparing it happens on the calling thread.
+     * @param futures The futures of the version, the asset index download is added to them
      */
-    private static void downloadAssetsForVersion(JsonNode versionDetails, String versionId) throws IOException {
+    private static void downloadAssetsForVersion(JsonNode versionDetails, List<Future<Void>> futures) {
         if (versionDetails.has("assetIndex")) {
             JsonNode assetIndex = versionDetails.get("assetIndex");
             String assetIndexUrl = assetIndex.get("url").asText();
+            String assetIndexSha1 = assetIndex.path("sha1").asText(null);
+            long assetIndexSize = assetIndex.path("size").asLong(-1);
             String assetIndexId = versionDetails.get("assets").asText();
 
             // Create assets directories
@@ -190,14 +205,11 @@ public class InstanceUtils {
             // Download asset index
             String assetIndexPath = indexesDir + "/" + assetIndexId + ".json";
             instanceUtilsLogger.info("Downloading asset index...");
-            try {
-                NetUtils.downloadArtifact(assetIndexUrl, assetIndexPath);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
-            instanceUtilsLogger.info("Note: Asset index downloaded. To download all assets,");
-            instanceUtilsLogger.info("      you would need to parse the index and download each file.");
+            futures.add(DownloadScheduler.submit(assetIndexUrl, () -> {
+                NetUtils.downloadMetadata(assetIndexUrl, assetIndexPath, assetIndexSha1, assetIndexSize);
+                instanceUtilsLogger.info("Note: Asset index downloaded. To download all assets,");
+                instanceUtilsLogger.info("      you would need to parse the index and download each file.");
+            }));
         }
     }
 
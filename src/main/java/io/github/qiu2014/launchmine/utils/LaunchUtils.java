@@ -10,11 +10,17 @@ import org.apache.logging.log4j.Logger;
 
 import javax.swing.*;
 import java.io.*;
-import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class LaunchUtils {
     private static final ObjectMapper objectMapper = new ObjectMapper();
@@ -22,12 +28,21 @@ public class LaunchUtils {
     private static MinecraftLogWindow logWindow = null;
     private static JFrame parentFrame = null;
     private static Logger launchUtilsLogger = LogManager.getLogger();
+    static final String ASSET_BASE_URL = "https://resources.download.minecraft.net/";
+    private static volatile boolean progressiveLaunch = false;
 
     // 设置父窗口（在主UI中调用）
     public static void setParentFrame(JFrame frame) {
         parentFrame = frame;
     }
 
+    /**
+     * Start the game as soon as libraries and critical assets are ready, downloading sounds and music while it runs
+     */
+    public static void setProgressiveLaunch(boolean enabled) {
+        progressiveLaunch = enabled;
+    }
+
     // 获取或创建下载对话框
     private static DownloadDialog getDownloadDialog() {
         if (downloadDialog == null && parentFrame != null) {
@@ -80,8 +95,11 @@ public class LaunchUtils {
         launchUtilsLogger.info("Assets: {}", versionJson.get("assets").asText());
         launchUtilsLogger.info("Type: {}", versionJson.get("type").asText());
 
-        // Ensure all files are downloaded and valid
-        validateAndDownloadFiles(versionJson, versionId);
+        // Ensure all files are downloaded and valid, ahead of any background work
+        AtomicReference<AssetIndex> assetIndex = new AtomicReference<>();
+        DownloadScheduler.runWithPriority(DownloadPriority.LAUNCH_CRITICAL,
+                () -> assetIndex.set(validateAndDownloadFiles(versionJson, versionId, progressiveLaunch)));
+        String gameAssetsDir = AssetsUtils.getGameAssetsDir(versionJson.path("assets").asText(), assetIndex.get());
 
         // 关闭下载对话框
         SwingUtilities.invokeLater(() -> {
@@ -91,7 +109,7 @@ public class LaunchUtils {
         });
 
         // Build launch command
-        List<String> command = buildLaunchCommand(versionJson, versionId,
+        List<String> command = buildLaunchCommand(versionJson, versionId, gameAssetsDir,
                 playerName, memoryMB, width, height);
 
         // Log the full command
@@ -162,6 +180,8 @@ public class LaunchUtils {
         });
 
         Process process = processBuilder.start();
+        // Downloads still running in the background make room for the game
+        BandwidthLimiter.gameStarted(process);
 
         // Start a thread to read output and send to log window
         new Thread(() -> {
@@ -236,8 +256,10 @@ public class LaunchUtils {
 
     /**
      * Validate and download all required files with progress dialog
+     * @param progressive Return once libraries and critical assets are ready, leaving sounds and music to a background download
+     * @return The asset index of the version, parsed once for the whole launch, null if it is missing
      */
-    private static void validateAndDownloadFiles(JsonNode versionJson, String versionId) throws Exception {
+    private static AssetIndex validateAndDownloadFiles(JsonNode versionJson, String versionId, boolean progressive) throws Exception {
         System.out.println("Validating files for version: " + versionId);
 
         // 在下载对话框显示验证信息
@@ -248,18 +270,92 @@ public class LaunchUtils {
             }
         });
 
-        // Download client JAR
+        // Open one connection per host before the downloads fan out
+        List<String> urls = new ArrayList<>();
+        versionJson.findValues("url").forEach(node -> urls.add(node.asText()));
+        urls.add(ASSET_BASE_URL);
+        NetUtils.warmUp(urls);
+
+        // Client, libraries and asset index first, the asset list comes from the index
+        List<Future<Void>> futures = new ArrayList<>();
+        for (RequiredFile file : collectVersionFiles(versionJson, versionId)) {
+            futures.add(DownloadScheduler.submit(file.url(), () -> validateOrDownloadFile(file.url(), file.path(),
+                    file.sha1(), file.size(), file.description())));
+        }
+        DownloadScheduler.awaitAll(futures);
+
+        // Parse asset index and download assets
+        String assetIndexPath = getAssetIndexPath(versionJson);
+        AssetIndex index = null;
+        if (assetIndexPath != null && new File(assetIndexPath).exists()) {
+            index = AssetIndex.parse(assetIndexPath);
+            // Only objects no synced index has need a look
+            AssetIndex delta = AssetSync.delta(assetIndexPath, index);
+            SwingUtilities.invokeLater(() -> {
+                DownloadDialog dialog = getDownloadDialog();
+                if (dialog != null) {
+                    dialog.addLog("资源增量: " + delta.count() + " 个 (" + (delta.totalSize() >> 20) + " MB)");
+                }
+            });
+            if (progressive && !delta.isVirtual() && !delta.isMapToResources()) {
+                // The game starts without sounds and music, they are fetched while it runs
+                AssetIndex critical = delta.select(name -> !isDeferrableAsset(name));
+                AssetIndex deferred = delta.select(LaunchUtils::isDeferrableAsset);
+                launchUtilsLogger.info("Progressive launch: {} assets before starting, {} ({} MB) in the background",
+                        critical.count(), deferred.count(), deferred.totalSize() >> 20);
+                if (!downloadAssets(critical, true)) {
+                    // The game reads these at boot, it would start without textures or language files
+                    throw new IOException("Failed to download the assets needed to start " + versionId);
+                }
+                // The dialog is closed by the time these finish, they only log
+                DownloadScheduler.submitCoordinator(DownloadPriority.PREFETCH, () -> {
+                    try {
+                        if (downloadAssets(deferred, false)) {
+                            AssetSync.markSynced(assetIndexPath);
+                        }
+                    } catch (Exception e) {
+                        launchUtilsLogger.error("Error downloading deferred assets for {}: {}", versionId, e.getMessage());
+                    }
+                });
+            } else if (downloadAssets(delta, true)) {
+                AssetSync.markSynced(assetIndexPath);
+            }
+
+            // Old versions read assets by name, not from the object store
+            try {
+                AssetsUtils.materializeAssetLayout(versionJson.get("assets").asText(), index);
+            } catch (IOException e) {
+                launchUtilsLogger.error("Failed to build asset tree for {}: {}", versionId, e.getMessage());
+            }
+        }
+
+        launchUtilsLogger.info("All files validated and ready!");
+
+        // 在下载对话框显示完成信息
+        SwingUtilities.invokeLater(() -> {
+            DownloadDialog dialog = getDownloadDialog();
+            if (dialog != null) {
+                dialog.addLog("所有文件验证完成，准备启动Minecraft...");
+            }
+        });
+        return index;
+    }
+
+    /**
+     * List the client JAR, libraries, natives and asset index a version needs
+     */
+    static List<RequiredFile> collectVersionFiles(JsonNode versionJson, String versionId) {
+        List<RequiredFile> files = new ArrayList<>();
+
+        // Client JAR
         if (versionJson.has("downloads") && versionJson.get("downloads").has("client")) {
             JsonNode client = versionJson.get("downloads").get("client");
-            String url = client.get("url").asText();
-            String sha1 = client.get("sha1").asText();
-            long size = client.get("size").asLong();
-
             String jarPath = String.format("./.minecraft/versions/%s/%s.jar", versionId, versionId);
-            validateOrDownloadFile(url, jarPath, sha1, size, "Client JAR");
+            files.add(new RequiredFile(client.get("url").asText(), jarPath, client.get("sha1").asText(),
+                    client.get("size").asLong(), "Client JAR"));
         }
 
-        // Download libraries
+        // Libraries
         if (versionJson.has("libraries")) {
             JsonNode libraries = versionJson.get("libraries");
             int totalLibraries = 0;
@@ -275,8 +371,7 @@ public class LaunchUtils {
                 }
             }
 
-            // 下载库文件
-            for (JsonNode library :libraries) {
+            for (JsonNode library : libraries) {
                 // Check rules
                 if (library.has("rules") && !shouldIncludeLibrary(library.get("rules"))) {
                     continue;
@@ -284,15 +379,11 @@ public class LaunchUtils {
                 if (library.has("downloads") && library.get("downloads").has("artifact")) {
                     currentLibrary++;
                     JsonNode artifact = library.get("downloads").get("artifact");
-                    String url = artifact.get("url").asText();
-                    String path = artifact.get("path").asText();
-                    String sha1 = artifact.get("sha1").asText();
-                    long size = artifact.get("size").asLong();
-
-                    String filePath = "./.minecraft/libraries/" + path;
-                    validateOrDownloadFile(url, filePath, sha1, size,
-                            String.format("Library (%d/%d): %s", currentLibrary, totalLibraries, library.get("name").asText()));
-                    }
+                    String filePath = "./.minecraft/libraries/" + artifact.get("path").asText();
+                    String description = String.format("Library (%d/%d): %s", currentLibrary, totalLibraries, library.get("name").asText());
+                    files.add(new RequiredFile(artifact.get("url").asText(), filePath, artifact.get("sha1").asText(),
+                            artifact.get("size").asLong(), description));
+                }
 
                 // Handle natives
                 if (library.has("downloads") && library.get("downloads").has("classifiers")) {
@@ -302,99 +393,112 @@ public class LaunchUtils {
                     String classifier = getNativeClassifier();
                     if (classifier != null && classifiers.has(classifier)) {
                         JsonNode nativeArtifact = classifiers.get(classifier);
-                        String url = nativeArtifact.get("url").asText();
-                        String path = nativeArtifact.get("path").asText();
-                        String sha1 = nativeArtifact.get("sha1").asText();
-                        long size = nativeArtifact.get("size").asLong();
-
-                        String filePath = "./.minecraft/libraries/" + path;
-                        validateOrDownloadFile(url, filePath, sha1, size, "Native: " + library.get("name").asText());
+                        String filePath = "./.minecraft/libraries/" + nativeArtifact.get("path").asText();
+                        files.add(new RequiredFile(nativeArtifact.get("url").asText(), filePath,
+                                nativeArtifact.get("sha1").asText(), nativeArtifact.get("size").asLong(),
+                                "Native: " + library.get("name").asText()));
                     }
                 }
             }
         }
 
-        // Download assets
-        if (versionJson.has("assetIndex")) {
+        // Asset index
+        String assetIndexPath = getAssetIndexPath(versionJson);
+        if (assetIndexPath != null) {
             JsonNode assetIndex = versionJson.get("assetIndex");
-            String assetIndexId = versionJson.get("assets").asText();
-            String url = assetIndex.get("url").asText();
-            String sha1 = assetIndex.get("sha1").asText();
-            long size = assetIndex.get("size").asLong();
-
-            String assetIndexPath = "./.minecraft/assets/indexes/" + assetIndexId + ".json";
-            validateOrDownloadFile(url, assetIndexPath, sha1, size, "Asset Index");
-
-            // Parse asset index and download assets
-            downloadAssets(assetIndexPath);
+            files.add(new RequiredFile(assetIndex.get("url").asText(), assetIndexPath, assetIndex.get("sha1").asText(),
+                    assetIndex.get("size").asLong(), "Asset Index"));
         }
-
-        launchUtilsLogger.info("All files validated and ready!");
-
-        // 在下载对话框显示完成信息
-        SwingUtilities.invokeLater(() -> {
-            DownloadDialog dialog = getDownloadDialog();
-            if (dialog != null) {
-                dialog.addLog("所有文件验证完成，准备启动Minecraft...");
-            }
-        });
+        return files;
     }
 
     /**
-     * Download assets from asset index with progress
+     * Get where the asset index of a version is stored
+     * @return The path, or null if the version has no asset index
      */
-    private static void downloadAssets(String assetIndexPath) throws Exception {
-        File assetIndexFile = new File(assetIndexPath);
-        if (!assetIndexFile.exists()) {
-            return;
+    static String getAssetIndexPath(JsonNode versionJson) {
+        if (!versionJson.has("assetIndex")) {
+            return null;
         }
+        return "./.minecraft/assets/indexes/" + versionJson.get("assets").asText() + ".json";
+    }
 
-        JsonNode assetIndex = objectMapper.readTree(assetIndexFile);
-        if (!assetIndex.has("objects")) {
-            return;
+    /**
+     * Read asset indexes into one set of objects, each object once even if several names share it.
+     * Indexes not downloaded yet are left out.
+     */
+    private static AssetIndex collectAssets(Collection<String> assetIndexPaths) throws IOException {
+        List<AssetIndex> indexes = new ArrayList<>();
+        for (String assetIndexPath : assetIndexPaths) {
+            if (new File(assetIndexPath).exists()) {
+                indexes.add(AssetIndex.parse(assetIndexPath));
+            }
         }
+        return AssetIndex.union(indexes);
+    }
 
-        JsonNode objects = assetIndex.get("objects");
-        int totalAssets = objects.size();
-        int downloaded = 0;
-        int skipped = 0;
+    /**
+     * Download assets with progress
+     * @param showProgress Whether to report to the download dialog, off for runs in the background
+     * @return Whether every asset is in place afterwards
+     */
+    private static boolean downloadAssets(AssetIndex assets, boolean showProgress) throws Exception {
+        int totalAssets = assets.count();
+        if (totalAssets == 0) {
+            return true;
+        }
 
         launchUtilsLogger.info("Checking {} assets...", totalAssets);
 
         // 在下载对话框显示资产检查信息
-        SwingUtilities.invokeLater(() -> {
-            DownloadDialog dialog = getDownloadDialog();
-            if (dialog != null) {
-                dialog.addLog("检查 " + totalAssets + " 个游戏资源...");
-            }
-        });
+        if (showProgress) {
+            SwingUtilities.invokeLater(() -> {
+                DownloadDialog dialog = getDownloadDialog();
+                if (dialog != null) {
+                    dialog.addLog("检查 " + totalAssets + " 个游戏资源...");
+                }
+            });
+        }
+
+        AtomicInteger downloaded = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<Future<Void>> futures = new ArrayList<>(totalAssets);
 
         int currentAsset = 0;
-        for (String key : (Iterable<String>) () -> objects.fieldNames()) {
+        // On a spinning disk visit the objects in the order they lie on it
+        int[] order = StorageUtils.accessOrder(totalAssets, i -> assetObjectPath(assets.hash(i)));
+        for (int i : order) {
             currentAsset++;
-            JsonNode asset = objects.get(key);
-            String hash = asset.get("hash").asText();
-            long size = asset.get("size").asLong();
+            String hash = assets.hash(i);
+            long size = assets.size(i);
 
             // Asset URL format: first 2 chars of hash as directory, then full hash
-            String url = "https://resources.download.minecraft.net/" +
-                    hash.substring(0, 2) + "/" + hash;
-            String filePath = "./.minecraft/assets/objects/" + hash.substring(0, 2) + "/" + hash;
-
-            if (!isFileValid(filePath, hash, size)) {
-                launchUtilsLogger.info("Downloading asset: {} ({})", key, hash.substring(0, 8));
+            String url = ASSET_BASE_URL + hash.substring(0, 2) + "/" + hash;
+            String filePath = assetObjectPath(hash);
+
+            final String assetName = assets.name(i);
+            int finalCurrentAsset = currentAsset;
+            // Queue against the host the asset will most likely come from
+            futures.add(DownloadScheduler.submit(MirrorUtils.rewrite(url), () -> {
+                if (isFileValid(filePath, hash, size)) {
+                    BackgroundScrubber.schedule(url, filePath, hash, size);
+                    skipped.incrementAndGet();
+                    return;
+                }
+                launchUtilsLogger.info("Downloading asset: {} ({})", assetName, hash.substring(0, 8));
 
                 // 在下载对话框显示当前下载的资产
-                final String assetName = key;
-                int finalCurrentAsset = currentAsset;
-                SwingUtilities.invokeLater(() -> {
-                    DownloadDialog dialog = getDownloadDialog();
-                    if (dialog != null) {
-                        dialog.setCurrentFile(String.format("资源 (%d/%d): %s",
-                                finalCurrentAsset, totalAssets,
-                                assetName.substring(Math.max(0, assetName.length() - 30))));
-                    }
-                });
+                if (showProgress) {
+                    SwingUtilities.invokeLater(() -> {
+                        DownloadDialog dialog = getDownloadDialog();
+                        if (dialog != null) {
+                            dialog.setCurrentFile(String.format("资源 (%d/%d): %s",
+                                    finalCurrentAsset, totalAssets,
+                                    assetName.substring(Math.max(0, assetName.length() - 30))));
+                        }
+                    });
+                }
 
                 // Create directory if it doesn't exist
                 File assetFile = new File(filePath);
@@ -402,7 +506,8 @@ public class LaunchUtils {
 
                 try {
                     // 使用带进度回调的下载方法
-                    NetUtils.downloadArtifact(url, filePath, new NetUtils.DownloadProgressCallback() {
+                    NetUtils.downloadArtifact(url, filePath, hash, size,
+                            !showProgress ? null : new NetUtils.DownloadProgressCallback() {
                         @Override
                         public void onProgress(long downloaded, long total) {
                             int progress = (int) ((downloaded * 100) / total);
@@ -420,27 +525,48 @@ public class LaunchUtils {
                         }
                     });
 
-                    downloaded++;
-
-                    // Verify download
-                    if (!isFileValid(filePath, hash, size)) {
-                        launchUtilsLogger.error("Warning: Downloaded asset failed validation: {}", key);
-                        assetFile.delete(); // Delete corrupted file
-                    }
+                    // A corrupted download throws before it reaches filePath
+                    downloaded.incrementAndGet();
                 } catch (Exception e) {
-                    launchUtilsLogger.error("Failed to download asset {}: {}", key, e.getMessage());
+                    failed.incrementAndGet();
+                    launchUtilsLogger.error("Failed to download asset {}: {}", assetName, e.getMessage());
                 }
-            } else {
-                skipped++;
-            }
+            }));
         }
 
-        if (downloaded > 0) {
-            launchUtilsLogger.info("Downloaded {} new assets", downloaded);
+        DownloadScheduler.awaitAll(futures);
+
+        if (downloaded.get() > 0) {
+            launchUtilsLogger.info("Downloaded {} new assets", downloaded.get());
+            // The limits the hosts settled on during the download
+            Map<String, Integer> limits = DownloadScheduler.getConcurrencyLimits();
+            launchUtilsLogger.info("Concurrency limits: {}", limits);
+            if (showProgress) {
+                SwingUtilities.invokeLater(() -> {
+                    DownloadDialog dialog = getDownloadDialog();
+                    if (dialog != null) {
+                        dialog.addLog("并发连接数: " + limits);
+                    }
+                });
+            }
         }
-        if (skipped > 0) {
-            launchUtilsLogger.info("Skipped {} existing assets", skipped);
+        if (skipped.get() > 0) {
+            launchUtilsLogger.info("Skipped {} existing assets", skipped.get());
         }
+        return failed.get() == 0;
+    }
+
+    /**
+     * Whether the game can start without an asset. Sounds and music are loaded when first played,
+     * while language files, textures, fonts and shaders are read at boot.
+     */
+    private static boolean isDeferrableAsset(String name) {
+        return name.startsWith("minecraft/sounds/") || name.startsWith("sounds/") || name.startsWith("music/")
+                || name.startsWith("realms/sounds/") || name.endsWith(".ogg");
+    }
+
+    static String assetObjectPath(String hash) {
+        return "./.minecraft/assets/objects/" + hash.substring(0, 2) + "/" + hash;
     }
 
     /**
@@ -453,6 +579,7 @@ public class LaunchUtils {
 
         if (isFileValid(filePath, expectedSha1, expectedSize)) {
             launchUtilsLogger.info("✓ {} is valid", description);
+            BackgroundScrubber.schedule(url, filePath, expectedSha1, expectedSize);
 
             // 在下载对话框显示验证信息
             SwingUtilities.invokeLater(() -> {
@@ -478,8 +605,9 @@ public class LaunchUtils {
         // Create parent directory
         file.getParentFile().mkdirs();
 
-        // Download the file with progress callback
-        NetUtils.downloadArtifact(url, filePath, new NetUtils.DownloadProgressCallback() {
+        // Download the file with progress callback, large files over several connections
+        // The file is hashed while it downloads and only replaces filePath if it matches
+        NetUtils.downloadArtifact(url, filePath, expectedSha1, expectedSize, new NetUtils.DownloadProgressCallback() {
             @Override
             public void onProgress(long downloaded, long total) {
                 int progress = (int) ((downloaded * 100) / total);
@@ -497,11 +625,6 @@ public class LaunchUtils {
             }
         });
 
-        // Verify the downloaded file
-        if (!isFileValid(filePath, expectedSha1, expectedSize)) {
-            throw new IOException("Downloaded file failed validation: " + description);
-        }
-
         launchUtilsLogger.info("✓ {} downloaded successfully", description);
 
         // 在下载对话框显示完成信息
@@ -614,35 +737,48 @@ public class LaunchUtils {
 
 
     /**
-     * Check if a file exists and has correct SHA1 hash
+     * Check made before using a file: it exists, has the expected size and has a matching entry in the
+     * verification index. Such a file is trusted and re-hashed later by the background scrubber, a file
+     * without an entry, never seen or changed since it was hashed, is hashed now.
+     * Versions validated at the same time share libraries and assets, so a file being hashed
+     * by another thread is not hashed again; the caller waits for that result instead.
      */
     private static boolean isFileValid(String filePath, String expectedSha1, long expectedSize) {
+        try {
+            return SingleFlight.run(SingleFlight.key("verify-" + expectedSha1, filePath),
+                    () -> checkFile(filePath, expectedSha1, expectedSize));
+        } catch (Exception e) {
+            launchUtilsLogger.error("Error validating {}: {}", filePath, e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean checkFile(String filePath, String expectedSha1, long expectedSize) {
         File file = new File(filePath);
 
         if (!file.exists()) {
             return false;
         }
 
-        // Check file size first (faster than SHA1 calculation)
         long actualSize = file.length();
         if (actualSize != expectedSize) {
             launchUtilsLogger.info("File size mismatch: {} (expected: {}, got: {})", filePath, expectedSize, actualSize);
             return false;
         }
 
-        // Only calculate SHA1 for small to medium files, or if size matches
-        // For very large files, we might skip SHA1 check for performance
-        if (expectedSize > 100 * 1024 * 1024) { // > 100MB
-            launchUtilsLogger.info("Skipping SHA1 check for large file: {}", filePath);
-            return true; // Trust the size check for large files
+        // Unchanged since it was last hashed
+        if (VerificationIndex.isVerified(file.toPath(), expectedSha1)) {
+            return true;
         }
 
         try {
-            String actualSha1 = calculateSHA1(file);
+            String actualSha1 = HashUtils.sha1(file.toPath());
             if (!actualSha1.equalsIgnoreCase(expectedSha1)) {
                 launchUtilsLogger.warn("SHA1 mismatch for: {} (expected: {}, got: {})", filePath, expectedSha1, actualSha1);
+                VerificationIndex.forget(file.toPath());
                 return false;
             }
+            VerificationIndex.record(file.toPath(), expectedSha1);
             return true;
         } catch (Exception e) {
             launchUtilsLogger.error("Error calculating SHA1 for {}: {}", filePath, e.getMessage());
@@ -650,33 +786,10 @@ public class LaunchUtils {
         }
     }
 
-    /**
-     * Calculate SHA1 hash of a file
-     */
-    private static String calculateSHA1(File file) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        try (InputStream fis = new FileInputStream(file);
-             BufferedInputStream bis = new BufferedInputStream(fis)) {
-
-            byte[] buffer = new byte[8192];
-            int count;
-            while ((count = bis.read(buffer)) > 0) {
-                digest.update(buffer, 0, count);
-            }
-        }
-
-        byte[] hash = digest.digest();
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : hash) {
-            hexString.append(String.format("%02x", b));
-        }
-        return hexString.toString();
-    }
-
     /**
      * Build the launch command
      */
-    private static List<String> buildLaunchCommand(JsonNode versionJson, String versionId,
+    private static List<String> buildLaunchCommand(JsonNode versionJson, String versionId, String gameAssetsDir,
                                                    String playerName, int memoryMB, int width, int height) {
 
         List<String> command = new ArrayList<>();
@@ -694,7 +807,7 @@ public class LaunchUtils {
             JsonNode jvmArgs = versionJson.get("arguments").get("jvm");
             for (JsonNode arg : jvmArgs) {
                 if (arg.isTextual()) {
-                    String argStr = replacePlaceholders(arg.asText(), versionJson, versionId, playerName, width, height);
+                    String argStr = replacePlaceholders(arg.asText(), versionJson, versionId, gameAssetsDir, playerName, width, height);
                     if (!argStr.isEmpty()) {
                         command.add(argStr);
                     }
@@ -703,13 +816,13 @@ public class LaunchUtils {
                         JsonNode value = arg.get("value");
                         if (value.isArray()) {
                             for (JsonNode v : value) {
-                                String argStr = replacePlaceholders(v.asText(), versionJson, versionId, playerName, width, height);
+                                String argStr = replacePlaceholders(v.asText(), versionJson, versionId, gameAssetsDir, playerName, width, height);
                                 if (!argStr.isEmpty()) {
                                     command.add(argStr);
                                 }
                             }
                         } else {
-                            String argStr = replacePlaceholders(value.asText(), versionJson, versionId, playerName, width, height);
+                            String argStr = replacePlaceholders(value.asText(), versionJson, versionId, gameAssetsDir, playerName, width, height);
                             if (!argStr.isEmpty()) {
                                 command.add(argStr);
                             }
@@ -734,7 +847,7 @@ public class LaunchUtils {
             JsonNode gameArgs = versionJson.get("arguments").get("game");
             for (JsonNode arg : gameArgs) {
                 if (arg.isTextual()) {
-                    String argStr = replacePlaceholders(arg.asText(), versionJson, versionId, playerName, width, height);
+                    String argStr = replacePlaceholders(arg.asText(), versionJson, versionId, gameAssetsDir, playerName, width, height);
                     if (!argStr.isEmpty() && !argStr.equals("--demo") && !argStr.equals("--width") && !argStr.equals("--height")) {
                         command.add(argStr);
                     }
@@ -743,13 +856,13 @@ public class LaunchUtils {
                         JsonNode value = arg.get("value");
                         if (value.isArray()) {
                             for (JsonNode v : value) {
-                                String argStr = replacePlaceholders(v.asText(), versionJson, versionId, playerName, width, height);
+                                String argStr = replacePlaceholders(v.asText(), versionJson, versionId, gameAssetsDir, playerName, width, height);
                                 if (!argStr.isEmpty() && !argStr.equals("--demo") && !argStr.equals("--width") && !argStr.equals("--height")) {
                                     command.add(argStr);
                                 }
                             }
                         } else {
-                            String argStr = replacePlaceholders(value.asText(), versionJson, versionId, playerName, width, height);
+                            String argStr = replacePlaceholders(value.asText(), versionJson, versionId, gameAssetsDir, playerName, width, height);
                             if (!argStr.isEmpty() && !argStr.equals("--demo") && !argStr.equals("--width") && !argStr.equals("--height")) {
                                 command.add(argStr);
                             }
@@ -766,7 +879,7 @@ public class LaunchUtils {
             command.add("--gameDir");
             command.add("./.minecraft");
             command.add("--assetsDir");
-            command.add("./.minecraft/assets");
+            command.add(gameAssetsDir);
             command.add("--assetIndex");
             command.add(versionJson.get("assets").asText());
             command.add("--uuid");
@@ -792,7 +905,7 @@ public class LaunchUtils {
     /**
      * Replace placeholders in arguments
      */
-    private static String replacePlaceholders(String str, JsonNode versionJson, String versionId,
+    private static String replacePlaceholders(String str, JsonNode versionJson, String versionId, String gameAssetsDir,
                                               String playerName, int width, int height) {
 
         String assetsIndex = versionJson.has("assets") ? versionJson.get("assets").asText() : versionId;
@@ -814,7 +927,9 @@ public class LaunchUtils {
                 .replace("${launcher_name}", "LaunchMine")
                 .replace("${launcher_version}", Main.VERSION)
                 .replace("${quickPlayMultiplayer}","");
-
+        if (result.contains("${game_assets}")) {
+            result = result.replace("${game_assets}", gameAssetsDir);
+        }
 
         // Handle any remaining ${variable} patterns
         result = result.replaceAll("\\$\\{[^}]*\\}", "");
@@ -983,38 +1098,9 @@ public class LaunchUtils {
     }
 
     /**
-     * Validate all files for a version on startup
-     */
-    public static void validateVersionOnStartup(String versionId) {
-        try {
-            String versionJsonPath = String.format("./.minecraft/versions/%s/%s.json", versionId, versionId);
-            File versionJsonFile = new File(versionJsonPath);
-
-            if (!versionJsonFile.exists()) {
-                launchUtilsLogger.info("Version {} not found, skipping validation", versionId);
-                return;
-            }
-
-            JsonNode versionJson = objectMapper.readTree(versionJsonFile);
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        validateAndDownloadFiles(versionJson, versionId);
-                    } catch (Exception e) {
-                        launchUtilsLogger.error(e.getMessage());
-                    }
-                }
-            }).start();
-
-
-        } catch (Exception e) {
-            launchUtilsLogger.error("Error validating version {}: {}", versionId, e.getMessage());
-        }
-    }
-
-    /**
-     * Validate all installed versions on startup
+     * Validate all installed versions on startup.
+     * Versions share most libraries and asset objects, so the versions are first resolved into one
+     * set of required files and every file is then checked once, whichever versions need it.
      */
     public static void validateAllVersionsOnStartup() {
         File versionsDir = new File("./.minecraft/versions");
@@ -1027,18 +1113,75 @@ public class LaunchUtils {
             return;
         }
 
+        // Finish what an interrupted run left behind before checking the versions
+        NetUtils.resumeInterruptedDownloads();
+
         launchUtilsLogger.info("Validating all installed versions...");
 
+        Map<String, JsonNode> versions = new LinkedHashMap<>();
         for (File versionFolder : versionFolders) {
             String versionId = versionFolder.getName();
             File versionJson = new File(versionFolder, versionId + ".json");
 
             if (versionJson.exists()) {
-                launchUtilsLogger.info("Validating: " + versionId);
-                validateVersionOnStartup(versionId);
+                try {
+                    versions.put(versionId, objectMapper.readTree(versionJson));
+                } catch (IOException e) {
+                    launchUtilsLogger.error("Error reading version {}: {}", versionId, e.getMessage());
+                }
+            }
+        }
+        if (versions.isEmpty()) {
+            return;
+        }
+
+        new Thread(() -> {
+            try {
+                // Repairs give way to whatever the user is waiting for
+                DownloadScheduler.runWithPriority(DownloadPriority.BACKGROUND_REPAIR, () -> validateInstalledFiles(versions));
+                launchUtilsLogger.info("Version validation complete!");
+            } catch (Exception e) {
+                launchUtilsLogger.error("Error validating versions: {}", e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Check the union of the files the versions need, each file once
+     */
+    private static void validateInstalledFiles(Map<String, JsonNode> versions) throws Exception {
+        Map<String, RequiredFile> files = new LinkedHashMap<>();
+        Set<String> assetIndexPaths = new LinkedHashSet<>();
+        List<String> urls = new ArrayList<>();
+        int references = 0;
+        for (Map.Entry<String, JsonNode> version : versions.entrySet()) {
+            for (RequiredFile file : collectVersionFiles(version.getValue(), version.getKey())) {
+                references++;
+                if (files.putIfAbsent(file.key(), file) == null) {
+                    urls.add(file.url());
+                }
+            }
+            String assetIndexPath = getAssetIndexPath(version.getValue());
+            if (assetIndexPath != null) {
+                assetIndexPaths.add(assetIndexPath);
             }
         }
+        urls.add(ASSET_BASE_URL);
+        NetUtils.warmUp(urls);
 
-        launchUtilsLogger.info("Version validation complete!");
+        List<Future<Void>> futures = new ArrayList<>(files.size());
+        for (RequiredFile file : files.values()) {
+            futures.add(DownloadScheduler.submit(file.url(), () -> validateOrDownloadFile(file.url(), file.path(),
+                    file.sha1(), file.size(), file.description())));
+        }
+        DownloadScheduler.awaitAll(futures);
+
+        // The asset indexes are in place now, collect the objects of all of them
+        AssetIndex assets = collectAssets(assetIndexPaths);
+        launchUtilsLogger.info("{} versions need {} files and {} asset objects ({} file references before merging)",
+                versions.size(), files.size(), assets.count(), references);
+        if (downloadAssets(assets, false)) {
+            assetIndexPaths.forEach(AssetSync::markSynced);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,202 @@
+package io.github.qiu2014.launchmine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rewrites Mojang download URLs to equivalent mirror hosts.
+ * Each official prefix has an ordered list of mirrors serving the same paths. Hosts are ranked by the
+ * latency of their connection warm-up and by the throughput of real downloads; a host that fails
+ * drops down the list. Only files with a known SHA-1 are fetched from mirrors, so a mirror can make
+ * a download faster but never change what ends up on disk.
+ * Mirrors are third-party hosts, so they are only used once the user turns them on.
+ */
+public class MirrorUtils {
+    /**
+     * BMCLAPI mirrors the version metadata, the library Maven repository and the asset store.
+     * A suggestion, used only when mirrors are enabled.
+     */
+    public static final Map<String, List<String>> DEFAULT_MIRRORS = new LinkedHashMap<>();
+    static {
+        DEFAULT_MIRRORS.put("https://piston-meta.mojang.com/", List.of("https://bmclapi2.bangbang93.com/"));
+        DEFAULT_MIRRORS.put("https://launchermeta.mojang.com/", List.of("https://bmclapi2.bangbang93.com/"));
+        DEFAULT_MIRRORS.put("https://piston-data.mojang.com/", List.of("https://bmclapi2.bangbang93.com/"));
+        DEFAULT_MIRRORS.put("https://launcher.mojang.com/", List.of("https://bmclapi2.bangbang93.com/"));
+        DEFAULT_MIRRORS.put("https://libraries.minecraft.net/", List.of("https://bmclapi2.bangbang93.com/maven/"));
+        DEFAULT_MIRRORS.put("https://resources.download.minecraft.net/", List.of("https://bmclapi2.bangbang93.com/assets/"));
+    }
+
+    /** Size of the file the ranking estimates the download time of */
+    private static final double REFERENCE_BYTES = 1024 * 1024;
+    /** Throughput assumed when nothing has been downloaded from any host yet */
+    private static final double DEFAULT_BYTES_PER_SECOND = 1024 * 1024;
+
+    private static Logger mirrorLogger = LogManager.getLogger();
+    private static volatile boolean enabled = false;
+    private static volatile Map<String, List<String>> mirrors = DEFAULT_MIRRORS;
+    private static final Map<String, HostStats> stats = new ConcurrentHashMap<>();
+
+    private static class HostStats {
+        double latencyMs = -1;
+        double bytesPerSecond = -1;
+        double errorRate = 0;
+    }
+
+    /**
+     * Set the mirrors to use
+     * @param useMirrors Whether downloads may go to mirrors at all
+     * @param configured Official prefix to its mirror prefixes, in order of preference
+     */
+    public static void configure(boolean useMirrors, Map<String, List<String>> configured) {
+        enabled = useMirrors;
+        mirrors = new LinkedHashMap<>(configured);
+        if (useMirrors) {
+            mirrorLogger.info("Download mirrors enabled for {} source(s)", configured.size());
+        }
+    }
+
+    /**
+     * Get every URL serving the same file, the official one first
+     * @param url An official URL as found in the Mojang metadata
+     */
+    public static List<String> alternatives(String url) {
+        List<String> result = new ArrayList<>();
+        result.add(url);
+        if (!enabled) {
+            return result;
+        }
+        for (Map.Entry<String, List<String>> entry : mirrors.entrySet()) {
+            if (url.startsWith(entry.getKey())) {
+                String path = url.substring(entry.getKey().length());
+                for (String mirror : entry.getValue()) {
+                    result.add(mirror + path);
+                }
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the URLs serving the same file, the host expected to be fastest first.
+     * Hosts whose circuit breaker is open go last.
+     */
+    public static List<String> candidates(String url) {
+        List<String> result = alternatives(url);
+        if (result.size() > 1) {
+            // Stable sort, hosts without measurements keep the configured order
+            result.sort(Comparator.comparing((String candidate) -> CircuitBreaker.forHost(getHost(candidate)).isOpen())
+                    .thenComparingDouble(MirrorUtils::estimatedSeconds));
+        }
+        return result;
+    }
+
+    /**
+     * Get the URL the file would be downloaded from right now
+     */
+    public static String rewrite(String url) {
+        return candidates(url).get(0);
+    }
+
+    /**
+     * Whether two URLs point at the same file, possibly on different hosts
+     */
+    public static boolean isSameFile(String url, String other) {
+        if (url.equals(other)) {
+            return true;
+        }
+        // Mirrors can share a prefix between several official hosts, so every group is checked
+        for (Map.Entry<String, List<String>> entry : mirrors.entrySet()) {
+            List<String> prefixes = new ArrayList<>(entry.getValue());
+            prefixes.add(entry.getKey());
+            for (String prefix : prefixes) {
+                if (!url.startsWith(prefix)) {
+                    continue;
+                }
+                String path = url.substring(prefix.length());
+                for (String otherPrefix : prefixes) {
+                    if (other.startsWith(otherPrefix) && other.substring(otherPrefix.length()).equals(path)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public static void recordLatency(String url, long millis) {
+        HostStats host = statsFor(url);
+        synchronized (host) {
+            host.latencyMs = host.latencyMs < 0 ? millis : host.latencyMs * 0.7 + millis * 0.3;
+        }
+    }
+
+    public static void recordTransfer(String url, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        double bytesPerSecond = bytes * 1_000_000_000.0 / nanos;
+        HostStats host = statsFor(url);
+        synchronized (host) {
+            host.bytesPerSecond = host.bytesPerSecond < 0 ? bytesPerSecond : host.bytesPerSecond * 0.7 + bytesPerSecond * 0.3;
+            host.errorRate *= 0.7;
+        }
+    }
+
+    public static void recordFailure(String url) {
+        HostStats host = statsFor(url);
+        synchronized (host) {
+            host.errorRate = host.errorRate * 0.7 + 0.3;
+        }
+    }
+
+    /**
+     * Estimate how long a reference file takes to download from the host of a URL
+     */
+    private static double estimatedSeconds(String url) {
+        HostStats host = stats.get(getHost(url));
+        if (host == null) {
+            return Double.MAX_VALUE;
+        }
+        synchronized (host) {
+            if (host.latencyMs < 0 && host.bytesPerSecond < 0) {
+                return Double.MAX_VALUE;
+            }
+            double latency = Math.max(0, host.latencyMs) / 1000.0;
+            // An untried host is assumed as fast as the best one, so it gets a chance to prove otherwise
+            double throughput = host.bytesPerSecond > 0 ? host.bytesPerSecond : bestThroughput();
+            double seconds = latency + REFERENCE_BYTES / throughput;
+            // A host that keeps failing costs retries on top of its download time
+            return seconds / (1 - Math.min(0.9, host.errorRate));
+        }
+    }
+
+    private static double bestThroughput() {
+        double best = -1;
+        for (HostStats host : stats.values()) {
+            best = Math.max(best, host.bytesPerSecond);
+        }
+        return best > 0 ? best : DEFAULT_BYTES_PER_SECOND;
+    }
+
+    private static HostStats statsFor(String url) {
+        return stats.computeIfAbsent(getHost(url), h -> new HostStats());
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = URI.create(url).getAuthority();
+            return host != null ? host : "";
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
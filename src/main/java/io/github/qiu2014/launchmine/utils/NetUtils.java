@@ -1,54 +1,463 @@
 package io.github.qiu2014.launchmine.utils;
 
+import io.github.qiu2014.launchmine.Main;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 public class NetUtils {
+    private static Logger netLogger = LogManager.getLogger();
+
+    /**
+     * One client for the whole launcher so connections are pooled and HTTP/2 streams
+     * to the same host are multiplexed over a single TLS connection
+     */
+    private static volatile HttpClient httpClient = newHttpClient(RetryPolicy.defaults(), HttpClient.Version.HTTP_2);
+    /**
+     * The segments of a large file need connections of their own, over HTTP/2 they would all be streams
+     * of one connection sharing its congestion window. HTTP/1.1 opens a connection per request in flight.
+     */
+    private static volatile HttpClient segmentClient = newHttpClient(RetryPolicy.defaults(), HttpClient.Version.HTTP_1_1);
+    private static volatile RetryPolicy retryPolicy = RetryPolicy.defaults();
+    private static final Map<String, CompletableFuture<Boolean>> warmOrigins = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "download-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long WARM_UP_TIMEOUT_MS = 5000;
+    private static final long JOURNAL_THRESHOLD = 1024 * 1024;
+    private static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+    private static final long SEGMENT_THRESHOLD = 8 * 1024 * 1024;
+    private static final long SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_SEGMENTS = 8;
+    private static final double SEGMENT_TARGET_SECONDS = 2.0;
+    private static final Map<String, Double> segmentThroughput = new ConcurrentHashMap<>();
+    private static final String USER_AGENT = "LaunchMine/" + Main.VERSION;
+    public static final int DEFAULT_BUFFER_KB = 256;
+    private static volatile int bufferSize = DEFAULT_BUFFER_KB * 1024;
 
     public interface DownloadProgressCallback {
         void onProgress(long downloaded, long total);
         void onFileChanged(String fileName);
     }
 
+    /**
+     * Change how downloads are retried and timed out.
+     * The HTTP client is rebuilt for the new connect timeout, so call this before downloads start.
+     */
+    public static void configure(RetryPolicy policy) {
+        retryPolicy = policy;
+        httpClient = newHttpClient(policy, HttpClient.Version.HTTP_2);
+        segmentClient = newHttpClient(policy, HttpClient.Version.HTTP_1_1);
+        warmOrigins.clear();
+        netLogger.info("Download retries: {} attempt(s), connect timeout {} s, read timeout {} s",
+                policy.maxAttempts(), policy.connectTimeout().toSeconds(), policy.readTimeout().toSeconds());
+    }
+
+    /**
+     * Set how many bytes each download collects from the network before writing them to disk
+     */
+    public static void setBufferSize(int kilobytes) {
+        bufferSize = Math.max(16, Math.min(16 * 1024, kilobytes)) * 1024;
+    }
+
+    private static HttpClient newHttpClient(RetryPolicy policy, HttpClient.Version version) {
+        return HttpClient.newBuilder()
+                .version(version)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(policy.connectTimeout())
+                .build();
+    }
+
     // 修改现有的downloadArtifact方法，添加回调参数
     public static void downloadArtifact(String url, String destination, DownloadProgressCallback callback) throws Exception {
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setRequestMethod("GET");
-        connection.setConnectTimeout(15000);
-        connection.setReadTimeout(30000);
+        SingleFlight.run(SingleFlight.key("download", destination), () -> {
+            withRetry(url, retryPolicy.maxAttempts(), () -> downloadStream(url, destination, null, -1, callback));
+            return null;
+        });
+    }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 200) {
-            throw new IOException("HTTP " + responseCode + ": " + connection.getResponseMessage());
+    /**
+     * Run a download until it succeeds, fails for good or runs out of attempts.
+     * Every attempt picks up the .part file the previous one left behind.
+     * While the circuit breaker of the host is open the download waits for it, without holding permits,
+     * and only fails once the host has failed as many probes as the download has attempts.
+     */
+    private static void withRetry(String url, int maxAttempts, DownloadScheduler.DownloadTask download) throws Exception {
+        String host = URI.create(url).getAuthority();
+        CircuitBreaker breaker = CircuitBreaker.forHost(host != null ? host : "");
+        RetryPolicy policy = retryPolicy;
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.allowRequest()
+                    && !DownloadScheduler.withoutPermits(() -> breaker.awaitRequest(maxAttempts))) {
+                throw new CircuitOpenException(host);
+            }
+            try {
+                download.run();
+                breaker.recordSuccess();
+                return;
+            } catch (Exception e) {
+                if (RetryPolicy.isHostFailure(e) || RetryPolicy.isThrottled(e)) {
+                    DownloadScheduler.limiterFor(url).onDropped();
+                }
+                if (RetryPolicy.isHostFailure(e)) {
+                    breaker.recordFailure();
+                } else {
+                    // The host answered, even if the file was wrong or could not be written
+                    breaker.recordSuccess();
+                }
+                if (attempt >= maxAttempts || !policy.isRetryable(e, attempt)) {
+                    throw e;
+                }
+                long delay = policy.delayBeforeRetry(attempt, e);
+                netLogger.warn("Attempt {}/{} of {} failed ({}), retrying in {} ms",
+                        attempt, maxAttempts, getFileNameFromUrl(url), e.toString(), delay);
+                DownloadScheduler.withoutPermits(() -> {
+                    Thread.sleep(delay);
+                    return null;
+                });
+            }
         }
+    }
+
+    /**
+     * Download over a single connection, hashing the bytes as they arrive
+     * so a fresh file never has to be read back from disk to be verified
+     */
+    private static void downloadStream(String url, String destination, String expectedSha1,
+                                       long expectedSize, DownloadProgressCallback callback) throws Exception {
+        awaitWarmUp(url);
 
-        long fileSize = connection.getContentLengthLong();
+        Path target = Paths.get(destination);
+        Path part = DownloadJournal.partFile(destination);
         String fileName = getFileNameFromUrl(url);
 
+        // Only resume when the journal says the .part file belongs to this URL
+        DownloadJournal.Transfer previous = DownloadJournal.get(destination);
+        long offset = 0;
+        if (previous != null && MirrorUtils.isSameFile(previous.url(), url) && !previous.isSegmented() && Files.exists(part)) {
+            // The .part file is preallocated, only the bytes flushed at the last checkpoint count
+            offset = Math.min(previous.written(), Files.size(part));
+        }
+
+        HttpRequest.Builder builder = newRequest(url).GET();
+        if (offset > 0) {
+            builder.header("Range", "bytes=" + offset + "-");
+            String validator = previous.etag() != null ? previous.etag() : previous.lastModified();
+            if (validator != null) {
+                builder.header("If-Range", validator);
+            }
+        }
+        ConcurrencyLimiter limiter = DownloadScheduler.limiterFor(url);
+        HttpResponse<Flow.Publisher<List<ByteBuffer>>> response =
+                send(builder.build(), HttpResponse.BodyHandlers.ofPublisher(), limiter);
+
+        int responseCode = response.statusCode();
+        long fileSize;
+        if (responseCode == 206 && offset > 0) {
+            long[] range = parseContentRange(response.headers().firstValue("Content-Range").orElse(""));
+            if (range[0] != offset || (previous.size() > 0 && range[1] != previous.size())) {
+                // The server answered a different range than the one we have, start over
+                discard(response);
+                DownloadJournal.remove(destination);
+                Files.deleteIfExists(part);
+                downloadStream(url, destination, expectedSha1, expectedSize, callback);
+                return;
+            }
+            fileSize = range[1];
+            netLogger.info("Resuming {} at {} bytes", fileName, offset);
+        } else if (responseCode == 200) {
+            // Either a fresh download or the server ignored the range
+            offset = 0;
+            fileSize = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        } else {
+            // Release the stream so the connection can be reused
+            discard(response);
+            if (responseCode == 416) {
+                DownloadJournal.remove(destination);
+                Files.deleteIfExists(part);
+            }
+            throw new HttpStatusException(response, url);
+        }
+
+        // Fail before reading the body if the server announces the wrong file
+        if (expectedSize > 0 && fileSize > 0 && fileSize != expectedSize) {
+            discard(response);
+            DownloadJournal.remove(destination);
+            Files.deleteIfExists(part);
+            throw new VerificationException("Size mismatch for " + fileName + " (expected: " + expectedSize + ", server: " + fileSize + ")");
+        }
+        if (fileSize <= 0 && expectedSize > 0) {
+            fileSize = expectedSize;
+        }
+
+        // The bytes already in a resumed .part file are hashed once, the rest as they stream in
+        MessageDigest digest = expectedSha1 != null ? HashUtils.newSha1() : null;
+        if (digest != null && offset > 0) {
+            HashUtils.update(digest, part, offset);
+        }
+
+        // Small files are cheaper to fetch again than to journal
+        boolean journaled = fileSize < 0 || fileSize >= JOURNAL_THRESHOLD;
+        if (journaled) {
+            DownloadJournal.begin(destination, new DownloadJournal.Transfer(url, expectedSha1, fileSize,
+                    response.headers().firstValue("ETag").orElse(null),
+                    response.headers().firstValue("Last-Modified").orElse(null), offset));
+        }
+
         if (callback != null) {
             callback.onFileChanged(fileName);
         }
 
-        try (InputStream inputStream = connection.getInputStream();
-             FileOutputStream outputStream = new FileOutputStream(destination)) {
+        long totalRead = offset;
+        boolean tooLarge = false;
+        try (BodyReader source = new BodyReader(response.body(), retryPolicy.readTimeout());
+             RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            FileChannel channel = file.getChannel();
+            // Reserve the whole file up front so it is not grown extent by extent
+            if (offset == 0) {
+                file.setLength(0);
+            }
+            if (fileSize > 0) {
+                file.setLength(fileSize);
+            }
+
+            long checkpoint = offset;
+            List<ByteBuffer> buffers;
+            try {
+                while ((buffers = source.read()) != null) {
+                    long bytesRead = remaining(buffers);
+                    if (expectedSize > 0 && totalRead + bytesRead > expectedSize) {
+                        tooLarge = true;
+                        break;
+                    }
+                    if (digest != null) {
+                        // Hashed straight from the buffers of the HTTP client, no stream in between
+                        for (ByteBuffer buffer : buffers) {
+                            digest.update(buffer.duplicate());
+                        }
+                    }
+                    totalRead = writeAt(channel, totalRead, buffers);
+                    limiter.onBytes(bytesRead);
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long totalRead = 0;
+                    if (journaled && totalRead - checkpoint >= CHECKPOINT_BYTES) {
+                        channel.force(false);
+                        DownloadJournal.checkpoint(destination, totalRead);
+                        checkpoint = totalRead;
+                    }
 
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-                totalRead += bytesRead;
+                    if (callback != null && fileSize > 0) {
+                        callback.onProgress(totalRead, fileSize);
+                    }
+                }
+            } catch (IOException e) {
+                // Keep what has arrived so far, the next attempt resumes from here
+                if (journaled && channel.isOpen()) {
+                    channel.force(false);
+                    DownloadJournal.checkpoint(destination, totalRead);
+                }
+                throw e;
+            }
 
-                if (callback != null && fileSize > 0) {
-                    callback.onProgress(totalRead, fileSize);
+            if (!tooLarge) {
+                if (fileSize > 0 && totalRead != fileSize) {
+                    channel.force(false);
+                    if (journaled) {
+                        DownloadJournal.checkpoint(destination, totalRead);
+                    }
+                    throw new TransportException("Download of " + fileName + " ended at " + totalRead + " of " + fileSize + " bytes", null);
                 }
+                channel.truncate(totalRead);
+                channel.force(true);
+            }
+        }
+
+        if (tooLarge) {
+            // Deleted once closed, an open file cannot be deleted on Windows
+            DownloadJournal.remove(destination);
+            Files.deleteIfExists(part);
+            throw new VerificationException("Download of " + fileName + " is larger than the expected " + expectedSize + " bytes");
+        }
+
+        if (digest != null) {
+            String actualSha1 = HashUtils.toHex(digest.digest());
+            if (!actualSha1.equalsIgnoreCase(expectedSha1)) {
+                DownloadJournal.remove(destination);
+                Files.deleteIfExists(part);
+                throw new VerificationException("SHA1 mismatch for " + fileName + " (expected: " + expectedSha1 + ", got: " + actualSha1 + ")");
+            }
+        }
+
+        moveIntoPlace(part, target);
+        DownloadJournal.remove(destination);
+        if (expectedSha1 != null) {
+            // Hashed on the way in, no need to hash it again at the next launch
+            VerificationIndex.record(target, expectedSha1);
+        }
+    }
+
+    /**
+     * Download a metadata file such as the version manifest, a version JSON or an asset index.
+     * When the file is already on disk the request carries its ETag and Last-Modified, so an
+     * unchanged file costs a 304 response instead of the whole body. Bodies may arrive gzip-compressed.
+     * @return Whether the file on disk changed
+     */
+    public static boolean downloadMetadata(String url, String destination) throws Exception {
+        return downloadMetadata(url, destination, null, -1);
+    }
+
+    /**
+     * Download a metadata file whose size and SHA-1 are known, such as an asset index listed in a version JSON.
+     * The file on disk is only revalidated with the server while it still matches the SHA-1, and a new body
+     * only replaces it once its size and SHA-1 match.
+     * @param expectedSha1 SHA-1 of the file, or null to skip the checks
+     * @param expectedSize Size of the file in bytes, or a value below 1 if unknown
+     * @return Whether the file on disk changed
+     * @throws IOException If the downloaded file does not match the expected size or SHA-1
+     */
+    public static boolean downloadMetadata(String url, String destination, String expectedSha1, long expectedSize) throws Exception {
+        return SingleFlight.run(SingleFlight.key("download", destination), () -> {
+            AtomicBoolean changed = new AtomicBoolean();
+            withRetry(url, retryPolicy.maxAttempts(),
+                    () -> changed.set(fetchMetadata(url, destination, expectedSha1, expectedSize)));
+            return changed.get();
+        });
+    }
+
+    private static boolean fetchMetadata(String url, String destination, String expectedSha1, long expectedSize) throws Exception {
+        awaitWarmUp(url);
+
+        Path target = Paths.get(destination);
+        String fileName = getFileNameFromUrl(url);
+        HttpRequest.Builder builder = newRequest(url).header("Accept-Encoding", "gzip").GET();
+        HttpCache.Entry cached = HttpCache.get(destination);
+        // A 304 only says the server has not changed the file, the copy on disk may still be damaged
+        if (cached != null && cached.url().equals(url) && isIntact(target, expectedSha1, expectedSize)) {
+            if (cached.etag() != null) {
+                builder.header("If-None-Match", cached.etag());
+            }
+            if (cached.lastModified() != null) {
+                builder.header("If-Modified-Since", cached.lastModified());
+            }
+        }
+
+        HttpResponse<InputStream> response = send(builder.build(), HttpResponse.BodyHandlers.ofInputStream(),
+                DownloadScheduler.limiterFor(url));
+        if (response.statusCode() == 304) {
+            response.body().close();
+            netLogger.info("{} is up to date", fileName);
+            return false;
+        }
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new HttpStatusException(response, url);
+        }
+
+        Path part = DownloadJournal.partFile(destination);
+        InputStream body = new StallGuardedInputStream(response.body(), retryPolicy.readTimeout());
+        if (response.headers().firstValue("Content-Encoding").orElse("").equalsIgnoreCase("gzip")) {
+            body = new GZIPInputStream(body, 65536);
+        }
+        MessageDigest digest = expectedSha1 != null ? HashUtils.newSha1() : null;
+        long size;
+        try (InputStream inputStream = digest != null ? new DigestInputStream(body, digest) : body) {
+            size = Files.copy(inputStream, part, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (digest != null) {
+            if (expectedSize > 0 && size != expectedSize) {
+                Files.deleteIfExists(part);
+                throw new VerificationException("Size mismatch for " + fileName + " (expected: " + expectedSize + ", got: " + size + ")");
             }
+            String actualSha1 = HashUtils.toHex(digest.digest());
+            if (!actualSha1.equalsIgnoreCase(expectedSha1)) {
+                Files.deleteIfExists(part);
+                throw new VerificationException("SHA1 mismatch for " + fileName + " (expected: " + expectedSha1 + ", got: " + actualSha1 + ")");
+            }
+        }
+        moveIntoPlace(part, target);
+        if (digest != null) {
+            VerificationIndex.record(target, expectedSha1);
         }
 
-        connection.disconnect();
+        String etag = response.headers().firstValue("ETag").orElse(null);
+        String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        if (etag != null || lastModified != null) {
+            HttpCache.put(destination, new HttpCache.Entry(url, etag, lastModified));
+        } else {
+            HttpCache.remove(destination);
+        }
+        return true;
+    }
+
+    /**
+     * Check that a file on disk is complete, hashing it unless the verification index already vouches for it
+     * @param expectedSha1 SHA-1 of the file, or null to only check that it exists
+     */
+    private static boolean isIntact(Path file, String expectedSha1, long expectedSize) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        if (expectedSha1 == null) {
+            return true;
+        }
+        if (expectedSize > 0 && Files.size(file) != expectedSize) {
+            return false;
+        }
+        if (VerificationIndex.isVerified(file, expectedSha1)) {
+            return true;
+        }
+        if (!HashUtils.sha1(file).equalsIgnoreCase(expectedSha1)) {
+            netLogger.warn("{} does not match its SHA1, downloading it again", file.getFileName());
+            VerificationIndex.forget(file);
+            return false;
+        }
+        VerificationIndex.record(file, expectedSha1);
+        return true;
     }
 
     // 保持原有方法向后兼容
@@ -56,6 +465,700 @@ public class NetUtils {
         downloadArtifact(url, destination, null);
     }
 
+    /**
+     * Download a file whose size and SHA-1 are known from the version JSON.
+     * The file only replaces the destination once its size and SHA-1 match.
+     * Files above {@link #SEGMENT_THRESHOLD} are fetched over several HTTP/1.1 connections at once,
+     * as many as the host has slots free, smaller ones are hashed while they stream in.
+     * When the SHA-1 is known the file may come from a mirror, trying the next host when one fails.
+     * @param url The official URL of the file
+     * @param expectedSha1 SHA-1 of the whole file, or null to skip the check
+     * @param expectedSize Size of the file in bytes, or a value below 1 if unknown
+     * @throws IOException If the file does not match the expected size or SHA-1
+     */
+    public static void downloadArtifact(String url, String destination, String expectedSha1,
+                                        long expectedSize, DownloadProgressCallback callback) throws Exception {
+        // Two callers writing the same destination would share a .part file, the second one waits instead
+        SingleFlight.run(SingleFlight.key("download", destination), () -> {
+            downloadFromSources(url, destination, expectedSha1, expectedSize, callback);
+            return null;
+        });
+    }
+
+    private static void downloadFromSources(String url, String destination, String expectedSha1,
+                                            long expectedSize, DownloadProgressCallback callback) throws Exception {
+        // Without a checksum nothing would catch a mirror serving the wrong file
+        List<String> sources = expectedSha1 != null ? MirrorUtils.candidates(url) : List.of(url);
+        for (int i = 0; ; i++) {
+            String source = sources.get(i);
+            boolean lastSource = i == sources.size() - 1;
+            long start = System.nanoTime();
+            try {
+                // Move on to the next host quickly while there is one
+                int attempts = lastSource ? retryPolicy.maxAttempts() : Math.min(2, retryPolicy.maxAttempts());
+                fetchArtifact(source, destination, expectedSha1, expectedSize, callback, attempts);
+                MirrorUtils.recordTransfer(source, expectedSize, System.nanoTime() - start);
+                return;
+            } catch (Exception e) {
+                MirrorUtils.recordFailure(source);
+                if (lastSource) {
+                    throw e;
+                }
+                netLogger.warn("Download of {} from {} failed ({}), trying {}", getFileNameFromUrl(url),
+                        URI.create(source).getHost(), e.getMessage(), URI.create(sources.get(i + 1)).getHost());
+            }
+        }
+    }
+
+    private static void fetchArtifact(String url, String destination, String expectedSha1, long expectedSize,
+                                      DownloadProgressCallback callback, int attempts) throws Exception {
+        withRetry(url, attempts, () -> {
+            if (expectedSize < SEGMENT_THRESHOLD) {
+                downloadStream(url, destination, expectedSha1, expectedSize, callback);
+                return;
+            }
+            try {
+                downloadSegmented(url, destination, expectedSha1, expectedSize, callback);
+            } catch (RangeNotSupportedException e) {
+                netLogger.info("{} does not support ranges, downloading in one stream", getOrigin(url));
+                DownloadJournal.remove(destination);
+                Files.deleteIfExists(DownloadJournal.partFile(destination));
+                downloadStream(url, destination, expectedSha1, expectedSize, callback);
+            }
+        });
+    }
+
+    private static void downloadSegmented(String url, String destination, String expectedSha1,
+                                          long size, DownloadProgressCallback callback) throws Exception {
+        awaitWarmUp(url);
+
+        Path target = Paths.get(destination);
+        Path part = DownloadJournal.partFile(destination);
+        String fileName = getFileNameFromUrl(url);
+        String host = URI.create(url).getHost();
+
+        // Pick up the chunks an earlier attempt already flushed to disk
+        DownloadJournal.Transfer previous = DownloadJournal.get(destination);
+        int segments = getSegmentCount(host, size);
+        long chunkSize;
+        Set<Integer> done = new HashSet<>();
+        if (previous != null && MirrorUtils.isSameFile(previous.url(), url) && previous.isSegmented()
+                && previous.size() == size && Files.exists(part) && Files.size(part) == size) {
+            chunkSize = previous.chunkSize();
+            done.addAll(previous.chunks());
+            netLogger.info("Resuming {} with {} chunk(s) already downloaded", fileName, done.size());
+        } else {
+            // Several chunks per segment, so a fast connection takes over work from a slow one
+            chunkSize = Math.max(MIN_CHUNK_SIZE, (size + segments * 4L - 1) / (segments * 4L));
+            try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+                file.setLength(0);
+                file.setLength(size);
+            }
+            DownloadJournal.begin(destination, new DownloadJournal.Transfer(url, expectedSha1, size, null, null, 0,
+                    chunkSize, List.of()));
+        }
+
+        int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        Queue<Integer> remaining = new ConcurrentLinkedQueue<>();
+        long alreadyDone = 0;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            if (done.contains(chunk)) {
+                alreadyDone += Math.min(chunkSize, size - chunk * chunkSize);
+            } else {
+                remaining.add(chunk);
+            }
+        }
+        AtomicLong downloaded = new AtomicLong(alreadyDone);
+        segments = Math.min(segments, remaining.size());
+
+        if (callback != null) {
+            callback.onFileChanged(fileName);
+        }
+        // The first segment runs on the permits of the task, each further one takes a slot at the host or is skipped
+        DownloadScheduler.PriorityCell priority = DownloadScheduler.currentCell();
+        AtomicInteger connections = new AtomicInteger();
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < segments; i++) {
+                boolean first = i == 0;
+                workers.add(executor.submit(() -> {
+                    DownloadScheduler.DownloadTask segment = () -> {
+                        // A channel of its own, its position is moved by every write
+                        try (FileChannel segmentChannel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                            long bytes = 0;
+                            long start = System.nanoTime();
+                            Integer chunk;
+                            while ((chunk = remaining.poll()) != null) {
+                                bytes += downloadChunk(url, segmentChannel, chunk * chunkSize,
+                                        Math.min(size, (chunk + 1) * chunkSize), size, downloaded, callback);
+                                segmentChannel.force(false);
+                                DownloadJournal.markChunk(destination, chunk);
+                            }
+                            if (bytes > 0) {
+                                connections.incrementAndGet();
+                                recordSegmentThroughput(host, bytes, System.nanoTime() - start);
+                            }
+                        }
+                    };
+                    if (first) {
+                        DownloadScheduler.runInCell(priority, segment);
+                    } else {
+                        DownloadScheduler.runExtraSegment(url, priority, segment);
+                    }
+                    return null;
+                }));
+            }
+            DownloadScheduler.awaitAll(workers);
+            channel.force(true);
+        }
+        netLogger.info("Downloaded {} over {} connection(s) in {} chunk(s)", fileName, connections.get(), chunkCount - done.size());
+
+        if (expectedSha1 != null) {
+            String actualSha1 = HashUtils.sha1(part);
+            if (!actualSha1.equalsIgnoreCase(expectedSha1)) {
+                DownloadJournal.remove(destination);
+                Files.deleteIfExists(part);
+                throw new VerificationException("SHA1 mismatch for " + fileName + " (expected: " + expectedSha1 + ", got: " + actualSha1 + ")");
+            }
+        }
+
+        moveIntoPlace(part, target);
+        DownloadJournal.remove(destination);
+        if (expectedSha1 != null) {
+            // Hashed on the way in, no need to hash it again at the next launch
+            VerificationIndex.record(target, expectedSha1);
+        }
+    }
+
+    /**
+     * Write the buffers at a position of the channel, in one gathering write where the system allows
+     * @return The position after the last buffer
+     */
+    private static long writeAt(FileChannel channel, long position, List<ByteBuffer> buffers) throws IOException {
+        ByteBuffer[] array = buffers.toArray(ByteBuffer[]::new);
+        long end = position + remaining(buffers);
+        channel.position(position);
+        while (channel.position() < end) {
+            channel.write(array);
+        }
+        return end;
+    }
+
+    private static long remaining(List<ByteBuffer> buffers) {
+        long bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            bytes += buffer.remaining();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop the body of a response that is not going to be read
+     */
+    private static void discard(HttpResponse<Flow.Publisher<List<ByteBuffer>>> response) {
+        new BodyReader(response.body(), retryPolicy.readTimeout()).close();
+    }
+
+    /**
+     * Send a request, feeding the time to first byte to the concurrency limiter of its host
+     */
+    private static <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                            ConcurrencyLimiter limiter) throws IOException, InterruptedException {
+        return send(httpClient, request, handler, limiter);
+    }
+
+    private static <T> HttpResponse<T> send(HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                            ConcurrencyLimiter limiter) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        HttpResponse<T> response;
+        try {
+            response = client.send(request, handler);
+        } catch (HttpTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new TransportException(e.getMessage(), e);
+        }
+        // Errors and throttling are reported as drops by the retry loop, not as response times
+        if (response.statusCode() < 500 && response.statusCode() != 429) {
+            limiter.onResponse(System.nanoTime() - start);
+        }
+        return response;
+    }
+
+    /**
+     * Replace the destination with a finished .part file in one step, so readers see either the
+     * old file or the complete new one, never a half-written jar
+     */
+    private static void moveIntoPlace(Path part, Path target) throws IOException {
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Fetch the bytes from start (inclusive) to end (exclusive) into the channel
+     * @param channel A channel no other thread writes through, its position moves with every write
+     * @return The number of bytes written
+     */
+    private static long downloadChunk(String url, FileChannel channel, long start, long end, long size,
+                                      AtomicLong downloaded, DownloadProgressCallback callback) throws Exception {
+        HttpRequest request = newRequest(url).header("Range", "bytes=" + start + "-" + (end - 1)).GET().build();
+        ConcurrencyLimiter limiter = DownloadScheduler.limiterFor(url);
+        HttpResponse<Flow.Publisher<List<ByteBuffer>>> response =
+                send(segmentClient, request, HttpResponse.BodyHandlers.ofPublisher(), limiter);
+
+        if (response.statusCode() != 206) {
+            discard(response);
+            if (response.statusCode() == 200) {
+                throw new RangeNotSupportedException();
+            }
+            throw new HttpStatusException(response, url);
+        }
+
+        long position = start;
+        try (BodyReader source = new BodyReader(response.body(), retryPolicy.readTimeout())) {
+            List<ByteBuffer> buffers;
+            while ((buffers = source.read()) != null) {
+                long bytesRead = remaining(buffers);
+                if (position + bytesRead > end) {
+                    throw new TransportException("Server sent more than the requested range of " + url, null);
+                }
+                position = writeAt(channel, position, buffers);
+                limiter.onBytes(bytesRead);
+                long total = downloaded.addAndGet(bytesRead);
+                if (callback != null && bytesRead > 0) {
+                    callback.onProgress(total, size);
+                }
+            }
+        }
+
+        if (position != end) {
+            throw new TransportException("Segment of " + url + " ended at " + position + " instead of " + end, null);
+        }
+        return end - start;
+    }
+
+    /**
+     * Choose how many connections to use for a file.
+     * Without history this follows the file size; once a host has been measured, enough segments are
+     * opened for each to finish in about {@link #SEGMENT_TARGET_SECONDS} at the speed one connection reached.
+     */
+    private static int getSegmentCount(String host, long size) {
+        int maxBySize = (int) Math.max(1, Math.min(MAX_SEGMENTS, size / MIN_CHUNK_SIZE));
+        Double perSegment = segmentThroughput.get(host);
+        int segments;
+        if (perSegment == null) {
+            segments = (int) (size / SEGMENT_BYTES);
+        } else {
+            double bytesPerSegment = Math.max(1, perSegment * SEGMENT_TARGET_SECONDS);
+            segments = (int) Math.ceil(size / bytesPerSegment);
+        }
+        return Math.max(Math.min(2, maxBySize), Math.min(segments, maxBySize));
+    }
+
+    private static void recordSegmentThroughput(String host, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        double bytesPerSecond = bytes * 1_000_000_000.0 / nanos;
+        // Moving average, so one slow run does not decide the next download alone
+        segmentThroughput.merge(host, bytesPerSecond, (old, current) -> old * 0.5 + current * 0.5);
+    }
+
+    /**
+     * Thrown when a server answers a range request with the whole file
+     */
+    private static class RangeNotSupportedException extends IOException {
+    }
+
+    /**
+     * Thrown when a server answers with an unexpected HTTP status
+     */
+    public static class HttpStatusException extends IOException {
+        private final int statusCode;
+        private final long retryAfterMs;
+
+        HttpStatusException(HttpResponse<?> response, String url) {
+            super("HTTP " + response.statusCode() + ": " + url);
+            this.statusCode = response.statusCode();
+            this.retryAfterMs = parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return How long the server asked us to wait, or 0 if it did not say
+         */
+        public long getRetryAfterMs() {
+            return retryAfterMs;
+        }
+
+        private static long parseRetryAfter(String retryAfter) {
+            if (retryAfter == null) {
+                return 0;
+            }
+            try {
+                return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+                } catch (RuntimeException ignored) {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown when a downloaded file does not match its expected size or SHA-1
+     */
+    public static class VerificationException extends IOException {
+        VerificationException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown instead of sending a request to a host whose circuit breaker stayed open
+     */
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException(String host) {
+            super("Skipping download, " + host + " is not responding");
+        }
+    }
+
+    /**
+     * Thrown when a connection to the host fails or a response breaks off before its end
+     */
+    public static class TransportException extends IOException {
+        TransportException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Closes the body of a response when no bytes arrive for the read timeout.
+     * The request timeout only covers the wait for headers; without this a connection that
+     * stalls mid-body would block its download forever.
+     * Reads are also paced by the {@link BandwidthLimiter} and pause for more urgent downloads;
+     * time spent waiting for either is not a stall.
+     */
+    private static class StallGuardedInputStream extends FilterInputStream {
+        private final Duration timeout;
+        private final ScheduledFuture<?> check;
+        private volatile long lastProgress = System.nanoTime();
+        private volatile boolean stalled = false;
+        private volatile boolean throttled = false;
+
+        StallGuardedInputStream(InputStream in, Duration timeout) {
+            super(in);
+            this.timeout = timeout;
+            long period = Math.max(250, timeout.toMillis() / 4);
+            this.check = watchdog.scheduleAtFixedRate(this::checkStalled, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void checkStalled() {
+            if (!stalled && !throttled && System.nanoTime() - lastProgress > timeout.toNanos()) {
+                stalled = true;
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    // The reader sees the timeout either way
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = super.read();
+                return afterRead(b, b < 0 ? 0 : 1);
+            } catch (IOException e) {
+                throw stalled ? timedOut() : brokenOff(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int count = super.read(b, off, len);
+                return afterRead(count, count);
+            } catch (IOException e) {
+                throw stalled ? timedOut() : brokenOff(e);
+            }
+        }
+
+        private int afterRead(int result, int bytes) throws IOException {
+            if (stalled) {
+                throw timedOut();
+            }
+            if (bytes > 0) {
+                throttled = true;
+                try {
+                    DownloadScheduler.yieldToHigherPriority();
+                    BandwidthLimiter.acquire(bytes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                } finally {
+                    throttled = false;
+                }
+            }
+            lastProgress = System.nanoTime();
+            return result;
+        }
+
+        private HttpTimeoutException timedOut() {
+            return new HttpTimeoutException("No data received for " + timeout.toSeconds() + " s");
+        }
+
+        private IOException brokenOff(IOException e) {
+            return e instanceof InterruptedIOException ? e : new TransportException(e.getMessage(), e);
+        }
+
+        @Override
+        public void close() throws IOException {
+            check.cancel(false);
+            super.close();
+        }
+    }
+
+    /**
+     * Hands the body of a response to the download thread in the buffers the HTTP client received it in,
+     * so they are hashed and written to the file without being copied through a stream first.
+     * More of the body is only requested once the last buffers were taken, so a slow disk or a paused
+     * download holds the server back instead of filling memory.
+     * A body that sends nothing for the read timeout fails; time spent pausing for more urgent
+     * downloads or waiting for the {@link BandwidthLimiter} does not count.
+     */
+    private static class BodyReader implements Flow.Subscriber<List<ByteBuffer>>, AutoCloseable {
+        private static final Object END = new Object();
+        private final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+        private final Duration timeout;
+        private boolean finished = false;
+
+        BodyReader(Flow.Publisher<List<ByteBuffer>> body, Duration timeout) {
+            this.timeout = timeout;
+            body.subscribe(this);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription.complete(subscription);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            received.add(buffers);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            received.add(error);
+        }
+
+        @Override
+        public void onComplete() {
+            received.add(END);
+        }
+
+        /**
+         * Take the next buffers of the body, at least the download buffer size of them unless the body ends first
+         * @return The buffers, null once the body has ended
+         */
+        List<ByteBuffer> read() throws IOException {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            long bytes = 0;
+            while (!finished && bytes < bufferSize) {
+                List<ByteBuffer> next = next();
+                if (next != null) {
+                    buffers.addAll(next);
+                    bytes += remaining(next);
+                }
+            }
+            return finished && buffers.isEmpty() ? null : buffers;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<ByteBuffer> next() throws IOException {
+            Object item;
+            try {
+                item = received.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted");
+            }
+            if (item == null) {
+                throw new HttpTimeoutException("No data received for " + timeout.toSeconds() + " s");
+            }
+            if (item == END) {
+                finished = true;
+                return null;
+            }
+            if (item instanceof Throwable error) {
+                finished = true;
+                // The body is read from the connection, whatever went wrong went wrong there
+                throw error instanceof HttpTimeoutException timeout ? timeout : new TransportException(error.getMessage(), error);
+            }
+
+            List<ByteBuffer> buffers = (List<ByteBuffer>) item;
+            long bytes = remaining(buffers);
+            if (bytes > 0) {
+                try {
+                    DownloadScheduler.yieldToHigherPriority();
+                    BandwidthLimiter.acquire(bytes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                }
+            }
+            subscription.join().request(1);
+            return buffers;
+        }
+
+        /**
+         * Stop the body, unless it has ended already
+         */
+        @Override
+        public void close() {
+            if (!finished) {
+                finished = true;
+                subscription.thenAccept(Flow.Subscription::cancel);
+            }
+        }
+    }
+
+    /**
+     * Resume the transfers an earlier run left in the download journal
+     */
+    public static void resumeInterruptedDownloads() {
+        Map<String, DownloadJournal.Transfer> pending = DownloadJournal.pending();
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        netLogger.info("Resuming {} interrupted download(s)...", pending.size());
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Map.Entry<String, DownloadJournal.Transfer> entry : pending.entrySet()) {
+            String destination = entry.getKey();
+            String url = entry.getValue().url();
+            if (!Files.exists(DownloadJournal.partFile(destination))) {
+                DownloadJournal.remove(destination);
+                continue;
+            }
+            // Without the SHA-1 a resumed file would be moved into place unchecked
+            String sha1 = entry.getValue().sha1();
+            long size = entry.getValue().size();
+            futures.add(DownloadScheduler.submit(url, DownloadPriority.BACKGROUND_REPAIR,
+                    () -> downloadArtifact(url, destination, sha1, size, null)));
+        }
+
+        try {
+            DownloadScheduler.awaitAll(futures);
+        } catch (Exception e) {
+            netLogger.error("Failed to resume download: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Start opening connections to every host in the list before a bulk install, so the
+     * many requests that follow share one warm connection per host instead of racing to
+     * open their own. Returns immediately; downloads to a host wait for its warm-up.
+     * @param urls URLs whose hosts will be contacted, duplicates are ignored
+     */
+    public static void warmUp(Collection<String> urls) {
+        for (String url : urls) {
+            // Mirrors are warmed as well, the warm-up latency is what ranks them before any download
+            for (String alternative : MirrorUtils.alternatives(url)) {
+                String origin = getOrigin(alternative);
+                if (origin != null) {
+                    warmOrigin(origin);
+                }
+            }
+        }
+    }
+
+    private static CompletableFuture<Boolean> warmOrigin(String origin) {
+        // A failed warm-up is replaced so a later request can try again
+        return warmOrigins.compute(origin, (o, current) -> {
+            if (current != null && !(current.isDone() && !current.join())) {
+                return current;
+            }
+            HttpRequest request = newRequest(o).method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+            long start = System.nanoTime();
+            return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .handle((response, error) -> {
+                        if (error != null) {
+                            netLogger.debug("Warm-up of {} failed: {}", o, error.getMessage());
+                            MirrorUtils.recordFailure(o);
+                            return false;
+                        }
+                        MirrorUtils.recordLatency(o, (System.nanoTime() - start) / 1_000_000);
+                        return true;
+                    });
+        });
+    }
+
+    private static void awaitWarmUp(String url) {
+        String origin = getOrigin(url);
+        if (origin == null) {
+            return;
+        }
+        try {
+            warmOrigin(origin).get(WARM_UP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // A slow host just starts cold
+            netLogger.debug("Connection warm-up of {} did not finish: {}", origin, e.toString());
+        }
+    }
+
+    private static String getOrigin(String url) {
+        try {
+            URI uri = URI.create(url);
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return null;
+            }
+            return uri.getScheme() + "://" + uri.getAuthority() + "/";
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static HttpRequest.Builder newRequest(String url) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(retryPolicy.readTimeout())
+                .header("User-Agent", USER_AGENT);
+    }
+
+    /**
+     * Parse a Content-Range header such as "bytes 100-999/1000"
+     * @return The first byte and the full length, -1 where unknown
+     */
+    private static long[] parseContentRange(String contentRange) {
+        long[] result = {-1, -1};
+        try {
+            String range = contentRange.substring(contentRange.indexOf(' ') + 1);
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            result[0] = Long.parseLong(range.substring(0, dash));
+            String total = range.substring(slash + 1);
+            if (!total.equals("*")) {
+                result[1] = Long.parseLong(total);
+            }
+        } catch (RuntimeException e) {
+            netLogger.debug("Unparseable Content-Range: {}", contentRange);
+        }
+        return result;
+    }
+
     private static String getFileNameFromUrl(String url) {
         int lastSlash = url.lastIndexOf('/');
         if (lastSlash != -1 && lastSlash < url.length() - 1) {
@@ -63,4 +1166,4 @@ public class NetUtils {
         }
         return "unknown";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,427 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Offline install bundles, for sites without internet access. A bundle is one file holding a version
+ * and everything it needs, so it can provision any number of machines without a download.
+ * It is a zip whose first entry, bundle.json, lists every file with its path, SHA-1 and size, followed
+ * by one entry per distinct content named by its SHA-1; a content several files share is stored once.
+ * Jars and sounds are compressed already, so entries are not compressed again.
+ */
+public class OfflineBundle {
+    public static final int FORMAT = 1;
+    private static final String GAME_DIR = "./.minecraft";
+    private static final String MANIFEST_ENTRY = "bundle.json";
+    private static final String OBJECT_PREFIX = "objects/";
+    private static final String PART_SUFFIX = ".part";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Logger bundleLogger = LogManager.getLogger();
+
+    /**
+     * A file of the bundle
+     * @param path Where it goes, relative to the game directory
+     * @param sha1 SHA-1 of its content, which is also the name of the content in the bundle
+     * @param size Size in bytes
+     * @param url Where it is downloaded from online, so it can still be repaired later; null if nowhere
+     */
+    public record Entry(String path, String sha1, long size, String url) {
+    }
+
+    /**
+     * The first entry of a bundle
+     * @param format Layout of the bundle, {@link #FORMAT}
+     * @param version The version the bundle installs
+     * @param files Every file of the version
+     */
+    public record Manifest(int format, String version, List<Entry> files) {
+    }
+
+    /**
+     * Outcome of an export or import
+     * @param files Files listed in the bundle
+     * @param objects Distinct contents in the bundle
+     * @param written Contents written, into the bundle on export, into the game directory on import
+     * @param skipped Contents whose files were all in place already
+     * @param bytes Size of the contents written
+     */
+    public record Report(int files, int objects, int written, int skipped, long bytes) {
+    }
+
+    /**
+     * Write a version and everything it needs into a bundle: version JSON, client JAR, libraries,
+     * natives, asset index and asset objects. Every file is checked first, so a corrupt install never
+     * makes it into a bundle. Libraries and natives of other platforms are included where this
+     * install has them, so one bundle can serve a mixed fleet.
+     * @throws IOException If a file the version needs is missing or corrupt, in which case no bundle is written
+     */
+    public static Report export(String versionId, Path bundle) throws IOException {
+        Path gameDir = Paths.get(GAME_DIR).normalize();
+        Path versionJsonPath = gameDir.resolve("versions/" + versionId + "/" + versionId + ".json");
+        if (!Files.isRegularFile(versionJsonPath)) {
+            throw new IOException("Version " + versionId + " is not installed");
+        }
+        JsonNode versionJson = objectMapper.readTree(versionJsonPath.toFile());
+
+        Map<String, Entry> files = new LinkedHashMap<>();
+        for (RequiredFile file : LaunchUtils.collectVersionFiles(versionJson, versionId)) {
+            add(files, gameDir, file.path(), file.sha1(), file.size(), file.url());
+        }
+        addOtherPlatforms(files, gameDir, versionJson);
+        String assetIndexPath = LaunchUtils.getAssetIndexPath(versionJson);
+        if (assetIndexPath != null) {
+            if (!new File(assetIndexPath).exists()) {
+                throw new IOException("The asset index of " + versionId + " is missing, validate the version first");
+            }
+            AssetIndex assets = AssetIndex.union(List.of(AssetIndex.parse(assetIndexPath)));
+            for (int i = 0; i < assets.count(); i++) {
+                String hash = assets.hash(i);
+                add(files, gameDir, LaunchUtils.assetObjectPath(hash), hash, assets.size(i),
+                        LaunchUtils.ASSET_BASE_URL + hash.substring(0, 2) + "/" + hash);
+            }
+        }
+
+        HashUtils.Meter meter = HashUtils.startMeter();
+        verify(gameDir, files.values());
+        meter.report("bundle export of " + files.size() + " files");
+
+        // The version JSON goes last, so an interrupted import never leaves a version that looks installed
+        Entry versionEntry = entry(gameDir, versionJsonPath.toString(), HashUtils.sha1(versionJsonPath),
+                Files.size(versionJsonPath), null);
+        files.put(versionEntry.path(), versionEntry);
+
+        Map<String, Entry> objects = new LinkedHashMap<>();
+        for (Entry file : files.values()) {
+            objects.putIfAbsent(file.sha1(), file);
+        }
+        List<Entry> ordered = new ArrayList<>(StorageUtils.accessOrder(
+                objects.values().stream().filter(object -> object != versionEntry).toList(),
+                object -> gameDir.resolve(object.path()).toString()));
+        if (objects.get(versionEntry.sha1()) == versionEntry) {
+            ordered.add(versionEntry);
+        }
+
+        long bytes = 0;
+        Path temp = Paths.get(bundle + PART_SUFFIX);
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 20))) {
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            zip.write(objectMapper.writeValueAsBytes(new Manifest(FORMAT, versionId, new ArrayList<>(files.values()))));
+            zip.closeEntry();
+            for (Entry object : ordered) {
+                zip.putNextEntry(new ZipEntry(OBJECT_PREFIX + object.sha1()));
+                bytes += Files.copy(gameDir.resolve(object.path()), zip);
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, bundle, StandardCopyOption.REPLACE_EXISTING);
+        bundleLogger.info("Exported {} ({} files, {} objects, {} MB) to {}", versionId, files.size(), ordered.size(),
+                bytes >> 20, bundle);
+        return new Report(files.size(), ordered.size(), ordered.size(), 0, bytes);
+    }
+
+    /**
+     * Install a bundle into the game directory. The bundle is read once from start to end: each content
+     * is written next to its place and hashed on the hashing pool while the next one is read, and is
+     * only moved into place once it matches. Contents whose files are all in place already are skipped;
+     * files already there are hashed on the hashing pool while the bundle is read, unless they were
+     * verified since they last changed.
+     * The version JSON is installed last, once everything else is.
+     * @throws IOException If the bundle cannot be read, is incomplete or holds corrupt or unsafe content;
+     * files installed until then stay, and the version does not show up as installed
+     */
+    public static Report importBundle(Path bundle) throws IOException {
+        Path gameDir = Paths.get(GAME_DIR).normalize();
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(bundle), 1 << 20))) {
+            ZipEntry zipEntry = zip.getNextEntry();
+            if (zipEntry == null || !zipEntry.getName().equals(MANIFEST_ENTRY)) {
+                throw new IOException("Not an install bundle: " + bundle);
+            }
+            Manifest manifest = objectMapper.readValue(zip.readAllBytes(), Manifest.class);
+            if (manifest.format() != FORMAT) {
+                throw new IOException("Unsupported bundle format " + manifest.format());
+            }
+            Path versionJsonPath = resolve(gameDir, "versions/" + manifest.version() + "/" + manifest.version() + ".json");
+
+            Map<String, List<Entry>> targets = new HashMap<>();
+            for (Entry file : manifest.files()) {
+                resolve(gameDir, file.path());
+                targets.computeIfAbsent(file.sha1().toLowerCase(), sha1 -> new ArrayList<>()).add(file);
+            }
+            int objects = targets.size();
+
+            HashUtils.Meter meter = HashUtils.startMeter();
+            Map<Entry, CompletableFuture<String>> existing = hashExisting(gameDir, manifest.files());
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            Path versionPart = null;
+            int written = 0;
+            int skipped = 0;
+            long bytes = 0;
+            try {
+                while ((zipEntry = zip.getNextEntry()) != null) {
+                    List<Entry> files = zipEntry.getName().startsWith(OBJECT_PREFIX)
+                            ? targets.remove(zipEntry.getName().substring(OBJECT_PREFIX.length())) : null;
+                    if (files == null) {
+                        continue;
+                    }
+                    List<Path> missing = new ArrayList<>();
+                    for (Entry file : files) {
+                        if (!isInPlace(gameDir, file, existing)) {
+                            missing.add(resolve(gameDir, file.path()));
+                        }
+                    }
+                    if (missing.isEmpty()) {
+                        skipped++;
+                        continue;
+                    }
+
+                    // The version JSON waits in its part file until everything else is installed
+                    boolean holdsVersion = missing.remove(versionJsonPath);
+                    Path part = Paths.get((holdsVersion ? versionJsonPath : missing.getFirst()) + PART_SUFFIX);
+                    Files.createDirectories(part.getParent());
+                    try {
+                        bytes += Files.copy(zip, part, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        Files.deleteIfExists(part);
+                        throw e;
+                    }
+                    written++;
+                    if (holdsVersion) {
+                        versionPart = part;
+                    }
+                    String sha1 = files.getFirst().sha1();
+                    pending.add(HashUtils.sha1Async(part).thenAccept(actual -> install(part, sha1, actual, missing, holdsVersion)));
+                }
+
+                await(pending);
+                if (!targets.isEmpty()) {
+                    throw new IOException("Bundle is incomplete, " + targets.size() + " of " + objects + " objects are missing");
+                }
+                if (versionPart != null) {
+                    Files.move(versionPart, versionJsonPath, StandardCopyOption.REPLACE_EXISTING);
+                    versionPart = null;
+                }
+            } finally {
+                // Let the hashing finish before cleaning up after a failure
+                pending.forEach(future -> future.exceptionally(failure -> null).join());
+                if (versionPart != null) {
+                    Files.deleteIfExists(versionPart);
+                }
+            }
+            meter.report("bundle import of " + written + " objects");
+
+            // Every object of the asset index is in place, a later launch does not need to look at them
+            String assetIndexPrefix = "assets/indexes/";
+            for (Entry file : manifest.files()) {
+                if (file.path().startsWith(assetIndexPrefix)) {
+                    AssetSync.markSynced(resolve(gameDir, file.path()).toString());
+                }
+            }
+            bundleLogger.info("Imported {} from {}: {} objects written ({} MB), {} already in place",
+                    manifest.version(), bundle, written, bytes >> 20, skipped);
+            return new Report(manifest.files().size(), objects, written, skipped, bytes);
+        }
+    }
+
+    /**
+     * Put a verified part file in place of every file that lacks its content, or drop it if it does not match
+     */
+    private static void install(Path part, String sha1, String actualSha1, List<Path> targets, boolean keepPart) {
+        try {
+            if (!actualSha1.equalsIgnoreCase(sha1)) {
+                Files.deleteIfExists(part);
+                throw new IOException("Corrupt object " + sha1 + " in bundle (got: " + actualSha1 + ")");
+            }
+            for (int i = 0; i < targets.size(); i++) {
+                Path target = targets.get(i);
+                Files.createDirectories(target.getParent());
+                if (i == targets.size() - 1 && !keepPart) {
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.copy(part, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                VerificationIndex.record(target, sha1);
+            }
+            if (targets.isEmpty() && !keepPart) {
+                Files.deleteIfExists(part);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Start hashing every file that is there with the right size but not verified since it last changed.
+     * The import skips content on the strength of these hashes and then marks asset indexes synced,
+     * so nothing may be left to a later check.
+     */
+    private static Map<Entry, CompletableFuture<String>> hashExisting(Path gameDir, List<Entry> files) throws IOException {
+        Map<Entry, CompletableFuture<String>> hashes = new HashMap<>();
+        for (Entry file : files) {
+            Path path = resolve(gameDir, file.path());
+            if (Files.isRegularFile(path) && Files.size(path) == file.size()
+                    && !VerificationIndex.isVerified(path, file.sha1())) {
+                hashes.put(file, HashUtils.sha1Async(path));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Whether a file has its content already
+     * @param hashes The hashes started by {@link #hashExisting(Path, List)}
+     */
+    private static boolean isInPlace(Path gameDir, Entry file, Map<Entry, CompletableFuture<String>> hashes) throws IOException {
+        Path path = resolve(gameDir, file.path());
+        if (!Files.isRegularFile(path) || Files.size(path) != file.size()) {
+            return false;
+        }
+        CompletableFuture<String> hash = hashes.get(file);
+        if (hash == null) {
+            // Verified since it last changed
+            return true;
+        }
+        String actualSha1;
+        try {
+            actualSha1 = await(hash);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            return false;
+        }
+        if (!actualSha1.equalsIgnoreCase(file.sha1())) {
+            bundleLogger.info("Replacing corrupt {} (expected: {}, got: {})", file.path(), file.sha1(), actualSha1);
+            VerificationIndex.forget(path);
+            return false;
+        }
+        VerificationIndex.record(path, file.sha1());
+        return true;
+    }
+
+    /**
+     * Hash every file not verified since it last changed, on the hashing pool
+     */
+    private static void verify(Path gameDir, Iterable<Entry> files) throws IOException {
+        Map<Entry, CompletableFuture<String>> hashes = new LinkedHashMap<>();
+        for (Entry file : files) {
+            Path path = gameDir.resolve(file.path());
+            if (!Files.isRegularFile(path) || Files.size(path) != file.size()) {
+                throw new IOException(file.path() + " is missing or incomplete, validate the version first");
+            }
+            if (!VerificationIndex.isVerified(path, file.sha1())) {
+                hashes.put(file, HashUtils.sha1Async(path));
+            }
+        }
+        for (Map.Entry<Entry, CompletableFuture<String>> hash : hashes.entrySet()) {
+            Entry file = hash.getKey();
+            if (!await(hash.getValue()).equalsIgnoreCase(file.sha1())) {
+                throw new IOException(file.path() + " is corrupt, validate the version first");
+            }
+            VerificationIndex.record(gameDir.resolve(file.path()), file.sha1());
+        }
+    }
+
+    /**
+     * Add the libraries and natives of every platform that this install has, whatever the rules say
+     */
+    private static void addOtherPlatforms(Map<String, Entry> files, Path gameDir, JsonNode versionJson) throws IOException {
+        for (JsonNode library : versionJson.path("libraries")) {
+            JsonNode downloads = library.path("downloads");
+            List<JsonNode> artifacts = new ArrayList<>();
+            if (downloads.has("artifact")) {
+                artifacts.add(downloads.get("artifact"));
+            }
+            downloads.path("classifiers").forEach(artifacts::add);
+            for (JsonNode artifact : artifacts) {
+                if (!artifact.has("path") || !artifact.has("sha1")) {
+                    continue;
+                }
+                Path path = gameDir.resolve("libraries/" + artifact.get("path").asText());
+                if (Files.isRegularFile(path) && Files.size(path) == artifact.path("size").asLong(-1)) {
+                    add(files, gameDir, path.toString(), artifact.get("sha1").asText(), artifact.get("size").asLong(),
+                            artifact.path("url").asText(null));
+                }
+            }
+        }
+    }
+
+    private static void add(Map<String, Entry> files, Path gameDir, String path, String sha1, long size, String url) {
+        Entry file = entry(gameDir, path, sha1, size, url);
+        files.putIfAbsent(file.path(), file);
+    }
+
+    private static Entry entry(Path gameDir, String path, String sha1, long size, String url) {
+        String relative = gameDir.relativize(Paths.get(path).normalize()).toString().replace(File.separatorChar, '/');
+        return new Entry(relative, sha1.toLowerCase(), size, url);
+    }
+
+    /**
+     * Resolve a path of the bundle, refusing any that would land outside the game directory
+     */
+    private static Path resolve(Path gameDir, String path) throws IOException {
+        Path resolved = gameDir.resolve(path).normalize();
+        if (!resolved.startsWith(gameDir) || resolved.equals(gameDir)) {
+            throw new IOException("Unsafe path in bundle: " + path);
+        }
+        return resolved;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException unchecked ? unchecked.getCause() : e.getCause();
+            throw cause instanceof IOException io ? io : new IOException(cause);
+        }
+    }
+
+    /**
+     * Wait for every future, even after one failed, so no part file is still being written
+     */
+    private static void await(List<CompletableFuture<Void>> futures) throws IOException {
+        IOException failure = null;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                await(future);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * A map of small records kept in a JSON file in the working directory, for state that has to survive a restart.
+ * The file is read on first use. It is written to a temporary file that then replaces the old one, so a crash
+ * halfway through a write leaves the previous version instead of a truncated file.
+ * Changes made many times a second can be saved later, collected into one write; they are also written on exit.
+ * The file is written outside the lock of the map, so readers and writers never wait for the disk.
+ */
+class PersistentJsonMap<V> {
+    private static final long SAVE_DELAY_MS = 2000;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Logger stateLogger = LogManager.getLogger();
+    private static final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "state-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path file;
+    private final String description;
+    private final TypeReference<Map<String, V>> type;
+    /** Taken before the map, so snapshots reach the disk in the order they were taken */
+    private final Object writeLock = new Object();
+    private Map<String, V> entries = null;
+    private boolean dirty = false;
+    private boolean saveScheduled = false;
+
+    /**
+     * @param fileName The file in the working directory
+     * @param description What the file holds, for log messages
+     */
+    PersistentJsonMap(String fileName, String description, TypeReference<Map<String, V>> type) {
+        this.file = Paths.get(fileName);
+        this.description = description;
+        this.type = type;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save));
+    }
+
+    synchronized V get(String key) {
+        return load().get(key);
+    }
+
+    /**
+     * Get a copy of every entry, in the order they were added
+     */
+    synchronized Map<String, V> copy() {
+        return new LinkedHashMap<>(load());
+    }
+
+    /**
+     * Store a value, writing the file before returning
+     */
+    void put(String key, V value) {
+        synchronized (this) {
+            load().put(key, value);
+            dirty = true;
+        }
+        save();
+    }
+
+    /**
+     * Store a value, writing the file a little later together with other changes
+     */
+    synchronized void putLater(String key, V value) {
+        load().put(key, value);
+        scheduleSave();
+    }
+
+    /**
+     * Replace the value of a key that has one, writing the file a little later together with other changes
+     * @param update Gets the current value and returns the new one
+     */
+    synchronized void updateLater(String key, UnaryOperator<V> update) {
+        V value = load().get(key);
+        if (value != null) {
+            load().put(key, update.apply(value));
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Remove a key, writing the file before returning if it was there
+     */
+    void remove(String key) {
+        synchronized (this) {
+            if (load().remove(key) == null) {
+                return;
+            }
+            dirty = true;
+        }
+        save();
+    }
+
+    /**
+     * Remove a key, writing the file a little later together with other changes
+     */
+    synchronized void removeLater(String key) {
+        if (load().remove(key) != null) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Replace every entry, writing the file before returning
+     */
+    void replaceAll(Map<String, V> values) {
+        synchronized (this) {
+            load().clear();
+            entries.putAll(values);
+            dirty = true;
+        }
+        save();
+    }
+
+    private Map<String, V> load() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            if (Files.exists(file)) {
+                try {
+                    entries.putAll(objectMapper.readValue(file.toFile(), type));
+                } catch (IOException e) {
+                    // The state only saves work, starting without it costs time but nothing else
+                    stateLogger.warn("Ignoring unreadable {}: {}", description, e.getMessage());
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void scheduleSave() {
+        dirty = true;
+        if (!saveScheduled) {
+            saveScheduled = true;
+            saver.schedule(() -> {
+                synchronized (this) {
+                    saveScheduled = false;
+                }
+                save();
+            }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the entries out if they changed since the last write, removing the file once nothing is left
+     */
+    private void save() {
+        synchronized (writeLock) {
+            Map<String, V> snapshot;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                snapshot = new LinkedHashMap<>(entries);
+            }
+            try {
+                if (snapshot.isEmpty()) {
+                    Files.deleteIfExists(file);
+                    return;
+                }
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                objectMapper.writeValue(temp.toFile(), snapshot);
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                // Left dirty, so the next change or the exit tries again
+                synchronized (this) {
+                    dirty = true;
+                }
+                stateLogger.warn("Failed to write {}: {}", description, e.getMessage());
+            }
+        }
+    }
+}
@@ -9,6 +9,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class PreferencesUtils {
     private Main main;
@@ -22,6 +26,21 @@ public class PreferencesUtils {
     private int minecraftHeight;
     private boolean autoUpdateCheck;
     private String javaPath;
+    private int maxDownloads;
+    private int maxDownloadsPerHost;
+    private int downloadRetries;
+    private int connectTimeoutSeconds;
+    private int readTimeoutSeconds;
+    private boolean useMirrors;
+    private int maxDownloadKBps;
+    private int gameRunningDownloadKBps;
+    private int downloadBufferKB;
+    private boolean verificationXattr;
+    private String storageClass;
+    private int scrubIntervalDays;
+    private int scrubMBps;
+    private boolean progressiveLaunch;
+    private Map<String, List<String>> mirrors;
 
     /**
      * Load the settings
@@ -41,6 +60,21 @@ public class PreferencesUtils {
         rootNode.put("width", 854);
         rootNode.put("height", 480);
         rootNode.put("javaPath", System.getProperty("java.home"));
+        rootNode.put("maxDownloads", DownloadScheduler.DEFAULT_MAX_DOWNLOADS);
+        rootNode.put("maxDownloadsPerHost", DownloadScheduler.DEFAULT_MAX_DOWNLOADS_PER_HOST);
+        rootNode.put("downloadRetries", RetryPolicy.DEFAULT_MAX_ATTEMPTS);
+        rootNode.put("connectTimeoutSeconds", RetryPolicy.DEFAULT_CONNECT_TIMEOUT_SECONDS);
+        rootNode.put("readTimeoutSeconds", RetryPolicy.DEFAULT_READ_TIMEOUT_SECONDS);
+        rootNode.put("useMirrors", false);
+        rootNode.put("maxDownloadKBps", BandwidthLimiter.DEFAULT_MAX_KBPS);
+        rootNode.put("gameRunningDownloadKBps", BandwidthLimiter.DEFAULT_GAME_RUNNING_KBPS);
+        rootNode.put("downloadBufferKB", NetUtils.DEFAULT_BUFFER_KB);
+        rootNode.put("verificationXattr", false);
+        rootNode.put("storageClass", StorageUtils.AUTO);
+        rootNode.put("scrubIntervalDays", BackgroundScrubber.DEFAULT_INTERVAL_DAYS);
+        rootNode.put("scrubMBps", BackgroundScrubber.DEFAULT_MBPS);
+        rootNode.put("progressiveLaunch", false);
+        rootNode.set("mirrors", objectMapper.valueToTree(MirrorUtils.DEFAULT_MIRRORS));
         objectMapper.writerWithDefaultPrettyPrinter().writeValue(new File("options.json"), rootNode);
     }
 
@@ -85,11 +119,47 @@ public class PreferencesUtils {
 
     private void loadSettings() throws IOException {
         JsonNode jsonNode = objectMapper.readTree(new File("options.json"));
+        // 保留文件中的所有设置，保存时不会丢失额外的键
+        if (jsonNode instanceof ObjectNode objectNode) {
+            rootNode = objectNode;
+        }
         this.memory = jsonNode.get("memory").asInt();
         this.minecraftWidth = jsonNode.get("width").asInt();
         this.minecraftHeight = jsonNode.get("height").asInt();
         this.autoUpdateCheck = jsonNode.get("autoUpdateCheck").asBoolean();
         this.javaPath = jsonNode.get("javaPath").asText();
+        // Options added after the first release may be missing from older files
+        this.maxDownloads = jsonNode.path("maxDownloads").asInt(DownloadScheduler.DEFAULT_MAX_DOWNLOADS);
+        this.maxDownloadsPerHost = jsonNode.path("maxDownloadsPerHost").asInt(DownloadScheduler.DEFAULT_MAX_DOWNLOADS_PER_HOST);
+        this.downloadRetries = jsonNode.path("downloadRetries").asInt(RetryPolicy.DEFAULT_MAX_ATTEMPTS);
+        this.connectTimeoutSeconds = jsonNode.path("connectTimeoutSeconds").asInt(RetryPolicy.DEFAULT_CONNECT_TIMEOUT_SECONDS);
+        this.readTimeoutSeconds = jsonNode.path("readTimeoutSeconds").asInt(RetryPolicy.DEFAULT_READ_TIMEOUT_SECONDS);
+        this.useMirrors = jsonNode.path("useMirrors").asBoolean(false);
+        this.maxDownloadKBps = jsonNode.path("maxDownloadKBps").asInt(BandwidthLimiter.DEFAULT_MAX_KBPS);
+        this.gameRunningDownloadKBps = jsonNode.path("gameRunningDownloadKBps").asInt(BandwidthLimiter.DEFAULT_GAME_RUNNING_KBPS);
+        this.downloadBufferKB = jsonNode.path("downloadBufferKB").asInt(NetUtils.DEFAULT_BUFFER_KB);
+        this.verificationXattr = jsonNode.path("verificationXattr").asBoolean(false);
+        this.storageClass = jsonNode.path("storageClass").asText(StorageUtils.AUTO);
+        this.scrubIntervalDays = jsonNode.path("scrubIntervalDays").asInt(BackgroundScrubber.DEFAULT_INTERVAL_DAYS);
+        this.scrubMBps = jsonNode.path("scrubMBps").asInt(BackgroundScrubber.DEFAULT_MBPS);
+        this.progressiveLaunch = jsonNode.path("progressiveLaunch").asBoolean(false);
+        this.mirrors = loadMirrors(jsonNode.path("mirrors"));
+    }
+
+    /**
+     * Read the mirror table, an object mapping each official URL prefix to an array of mirror prefixes
+     */
+    private Map<String, List<String>> loadMirrors(JsonNode mirrorsNode) {
+        if (!mirrorsNode.isObject()) {
+            return MirrorUtils.DEFAULT_MIRRORS;
+        }
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        mirrorsNode.fields().forEachRemaining(entry -> {
+            List<String> prefixes = new ArrayList<>();
+            entry.getValue().forEach(prefix -> prefixes.add(prefix.asText()));
+            result.put(entry.getKey(), prefixes);
+        });
+        return result;
     }
 
     public int getMemory() {
@@ -111,4 +181,56 @@ public class PreferencesUtils {
     public String getJavaPath() {
         return javaPath;
     }
+
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public int getMaxDownloadsPerHost() {
+        return maxDownloadsPerHost;
+    }
+
+    public boolean getIsUseMirrors() {
+        return useMirrors;
+    }
+
+    public Map<String, List<String>> getMirrors() {
+        return mirrors;
+    }
+
+    public int getMaxDownloadKBps() {
+        return maxDownloadKBps;
+    }
+
+    public int getGameRunningDownloadKBps() {
+        return gameRunningDownloadKBps;
+    }
+
+    public int getDownloadBufferKB() {
+        return downloadBufferKB;
+    }
+
+    public boolean getIsVerificationXattr() {
+        return verificationXattr;
+    }
+
+    public String getStorageClass() {
+        return storageClass;
+    }
+
+    public int getScrubIntervalDays() {
+        return scrubIntervalDays;
+    }
+
+    public int getScrubMBps() {
+        return scrubMBps;
+    }
+
+    public boolean getIsProgressiveLaunch() {
+        return progressiveLaunch;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return RetryPolicy.of(downloadRetries, connectTimeoutSeconds, readTimeoutSeconds);
+    }
 }
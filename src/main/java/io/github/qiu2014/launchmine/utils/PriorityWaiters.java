@@ -0,0 +1,79 @@
+package io.github.qiu2014.launchmine.utils;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Threads waiting for a slot under a lock, with one condition per priority.
+ * A freed slot wakes only the most urgent waiter; waking all of them would wake thousands of queued
+ * downloads to let one through. Every method must be called with the lock held.
+ */
+class PriorityWaiters {
+    private final Condition[] conditions;
+    private final int[] waiting = new int[DownloadPriority.values().length];
+
+    PriorityWaiters(ReentrantLock lock) {
+        conditions = new Condition[waiting.length];
+        for (int i = 0; i < conditions.length; i++) {
+            conditions[i] = lock.newCondition();
+        }
+    }
+
+    /**
+     * Wait until a slot is free and nobody more urgent is waiting for it.
+     * The caller takes the slot and calls {@link #signalNext()} if slots are left.
+     * @param full Whether every slot is taken
+     */
+    void await(DownloadPriority priority, BooleanSupplier full) throws InterruptedException {
+        int level = priority.ordinal();
+        waiting[level]++;
+        try {
+            while (full.getAsBoolean() || isMoreUrgentWaiting(priority)) {
+                conditions[level].await();
+            }
+        } catch (InterruptedException e) {
+            waiting[level]--;
+            // The wake-up may have been meant for this waiter, pass it on
+            signalNext();
+            throw e;
+        }
+        waiting[level]--;
+    }
+
+    /**
+     * Wake the most urgent waiter, after a slot was freed or taken with more left
+     */
+    void signalNext() {
+        for (int i = 0; i < waiting.length; i++) {
+            if (waiting[i] > 0) {
+                conditions[i].signal();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether a waiter at least as urgent as the given priority is waiting for a slot
+     */
+    boolean isWaiting(DownloadPriority priority) {
+        for (int i = 0; i <= priority.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a waiter more urgent than the given priority is waiting for a slot
+     */
+    boolean isMoreUrgentWaiting(DownloadPriority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
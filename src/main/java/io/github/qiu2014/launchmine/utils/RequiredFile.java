@@ -0,0 +1,21 @@
+package io.github.qiu2014.launchmine.utils;
+
+import java.nio.file.Paths;
+
+/**
+ * A file a version needs, with where to get it and what it must hash to
+ * @param url Official download URL
+ * @param path Where the file lives under the game directory
+ * @param sha1 Expected SHA-1
+ * @param size Expected size in bytes
+ * @param description What the file is, for logs and the download dialog
+ */
+public record RequiredFile(String url, String path, String sha1, long size, String description) {
+    /**
+     * Identifies the object across versions: the same content at the same place.
+     * Versions sharing a library or asset resolve to equal keys.
+     */
+    public String key() {
+        return sha1.toLowerCase() + ":" + Paths.get(path).normalize();
+    }
+}
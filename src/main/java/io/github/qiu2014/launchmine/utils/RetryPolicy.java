@@ -0,0 +1,92 @@
+package io.github.qiu2014.launchmine.utils;
+
+import java.io.IOException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How failed downloads are retried and how long a request may wait on the network
+ * @param maxAttempts Attempts per file, including the first one
+ * @param baseDelayMs Delay before the first retry, doubled for each further retry
+ * @param maxDelayMs Upper bound of the delay between two attempts
+ * @param connectTimeout How long to wait for a connection to be established
+ * @param readTimeout How long to wait for response headers or for the next bytes of a body
+ */
+public record RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs,
+                          Duration connectTimeout, Duration readTimeout) {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_READ_TIMEOUT_SECONDS = 20;
+
+    public static RetryPolicy defaults() {
+        return of(DEFAULT_MAX_ATTEMPTS, DEFAULT_CONNECT_TIMEOUT_SECONDS, DEFAULT_READ_TIMEOUT_SECONDS);
+    }
+
+    public static RetryPolicy of(int maxAttempts, int connectTimeoutSeconds, int readTimeoutSeconds) {
+        return new RetryPolicy(Math.max(1, maxAttempts), 500, 15000,
+                Duration.ofSeconds(Math.max(1, connectTimeoutSeconds)),
+                Duration.ofSeconds(Math.max(1, readTimeoutSeconds)));
+    }
+
+    /**
+     * Whether another attempt could succeed where this one failed.
+     * Server errors, throttling and network failures are retried; a missing file or a file
+     * that does not match its checksum on the second try is not.
+     */
+    public boolean isRetryable(Exception e, int attempt) {
+        if (e instanceof NetUtils.HttpStatusException status) {
+            int code = status.getStatusCode();
+            return code == 408 || code == 429 || code >= 500;
+        }
+        if (e instanceof NetUtils.VerificationException) {
+            // A single corrupted transfer happens, the same mismatch twice means the metadata is wrong
+            return attempt < 2;
+        }
+        if (e instanceof NetUtils.CircuitOpenException) {
+            return false;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * Whether a failure says something about the health of the host, as opposed to the file or the
+     * local disk: a server error, or a connection that could not be opened, timed out or broke off.
+     * Errors writing the file, such as a full disk, are not the host's fault.
+     */
+    public static boolean isHostFailure(Exception e) {
+        if (e instanceof NetUtils.HttpStatusException status) {
+            return status.getStatusCode() >= 500;
+        }
+        return e instanceof HttpTimeoutException || e instanceof NetUtils.TransportException;
+    }
+
+    /**
+     * Whether the host refused the request because it gets too many
+     */
+    public static boolean isThrottled(Exception e) {
+        return e instanceof NetUtils.HttpStatusException status && status.getStatusCode() == 429;
+    }
+
+    /**
+     * Exponential backoff with full jitter, so thousands of failed tasks do not retry in lockstep.
+     * A connect timeout has already cost a full timeout, so it is retried without extra delay on top
+     * of the first step; a Retry-After from the server always wins.
+     * @param attempt The attempt that just failed, starting at 1
+     */
+    public long delayBeforeRetry(int attempt, Exception e) {
+        if (e instanceof NetUtils.HttpStatusException status && status.getRetryAfterMs() > 0) {
+            return Math.min(status.getRetryAfterMs(), maxDelayMs * 4);
+        }
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+        if (e instanceof HttpConnectTimeoutException) {
+            ceiling = baseDelayMs;
+        } else if (e instanceof HttpTimeoutException) {
+            // A stalled read resumes where it stopped, no need to back off as far
+            ceiling = Math.min(ceiling, maxDelayMs / 2);
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+}
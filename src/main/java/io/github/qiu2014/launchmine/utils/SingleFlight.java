@@ -0,0 +1,63 @@
+package io.github.qiu2014.launchmine.utils;
+
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Makes concurrent callers asking for the same operation share one run of it.
+ * The first caller does the work; callers arriving while it runs wait and get the same
+ * result or exception. Once finished the operation is forgotten, so a later call runs it again.
+ * A caller joining with a higher {@link DownloadPriority} lends it to the caller doing the work,
+ * otherwise a launch could wait on a background download that is paused for that very launch.
+ */
+public class SingleFlight {
+    private static final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private record Flight(CompletableFuture<Object> result, DownloadScheduler.PriorityCell owner) {
+    }
+
+    /**
+     * Build the key of an operation on a file, the same for every spelling of its path
+     * @param operation What is done to the file, operations with different names never share a run
+     */
+    public static String key(String operation, String path) {
+        return operation + ":" + Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Run the work, or join the run already in flight for the key.
+     * The work must not call back into an operation with the same key.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T run(String key, Callable<T> work) throws Exception {
+        DownloadScheduler.PriorityCell cell = DownloadScheduler.currentCell();
+        Flight mine = new Flight(new CompletableFuture<>(), cell);
+        Flight existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            existing.owner().raiseTo(cell.get());
+            try {
+                // The permits of this caller may be the ones the running work waits for
+                return (T) DownloadScheduler.withoutPermits(() -> existing.result().get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+
+        DownloadPriority original = cell.get();
+        try {
+            T result = work.call();
+            mine.result().complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            mine.result().completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+            cell.set(original);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package io.github.qiu2014.launchmine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Works out what kind of storage the game directory is on and how hard it can be pushed.
+ * Many parallel reads and writes suit SSDs, but make a spinning disk seek all the time and
+ * pile up round trips on a network file system.
+ */
+public class StorageUtils {
+    public static final String AUTO = "auto";
+    private static final Set<String> NETWORK_TYPES = Set.of(
+            "nfs", "nfs4", "cifs", "smb", "smb2", "smb3", "smbfs", "9p", "afs", "afpfs", "webdav", "davfs",
+            "ceph", "glusterfs", "fuse.glusterfs", "fuse.sshfs", "sshfs", "fuse.rclone", "lustre", "gpfs", "beegfs");
+
+    private static Logger storageLogger = LogManager.getLogger();
+    private static volatile StorageClass storageClass = StorageClass.UNKNOWN;
+
+    /**
+     * Kinds of storage, with the I/O settings used on each
+     */
+    public enum StorageClass {
+        SSD(Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE, false),
+        HDD(1, 8, true),
+        NETWORK(4, 16, true),
+        UNKNOWN(Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE, false);
+
+        private final int hashThreads;
+        private final int maxDownloads;
+        private final boolean locationOrder;
+
+        StorageClass(int hashThreads, int maxDownloads, boolean locationOrder) {
+            this.hashThreads = hashThreads;
+            this.maxDownloads = maxDownloads;
+            this.locationOrder = locationOrder;
+        }
+
+        /** How many files are hashed at the same time */
+        public int getHashThreads() {
+            return hashThreads;
+        }
+
+        /** Upper bound of downloads writing at the same time */
+        public int getMaxDownloads() {
+            return maxDownloads;
+        }
+
+        /** Whether files should be visited in on-disk order instead of manifest order */
+        public boolean isLocationOrder() {
+            return locationOrder;
+        }
+    }
+
+    /**
+     * Detect or set the storage class of the game directory and apply its hashing concurrency
+     * @param setting "auto" to detect, otherwise the name of a storage class
+     */
+    public static void configure(String setting, Path gameDirectory) {
+        StorageClass chosen = null;
+        if (setting != null && !setting.equalsIgnoreCase(AUTO)) {
+            try {
+                chosen = StorageClass.valueOf(setting.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                storageLogger.warn("Unknown storage class '{}', detecting it instead", setting);
+            }
+        }
+        if (chosen == null) {
+            chosen = detect(gameDirectory);
+        }
+        storageClass = chosen;
+        HashUtils.setThreads(chosen.getHashThreads());
+        storageLogger.info("Game directory storage: {} ({} hashing threads{})", chosen, chosen.getHashThreads(),
+                chosen.isLocationOrder() ? ", on-disk order" : "");
+    }
+
+    public static StorageClass getStorageClass() {
+        return storageClass;
+    }
+
+    /**
+     * Cap a configured number of parallel downloads to what the storage takes
+     */
+    public static int limitDownloads(int maxDownloads) {
+        return Math.min(maxDownloads, storageClass.getMaxDownloads());
+    }
+
+    /**
+     * Put files in the order they are best visited in. On a spinning disk or a network file system
+     * that is by inode where the platform has them, which follows where the file system placed them,
+     * and by path otherwise. Elsewhere the order is left alone.
+     * @param path Gets the file of an item
+     * @return The items in access order, a new list
+     */
+    public static <T> List<T> accessOrder(List<T> items, Function<T, String> path) {
+        List<T> ordered = new ArrayList<>(items.size());
+        for (int i : accessOrder(items.size(), i -> path.apply(items.get(i)))) {
+            ordered.add(items.get(i));
+        }
+        return ordered;
+    }
+
+    /**
+     * Put the files numbered 0 to count - 1 in the order they are best visited in, without boxing the numbers
+     * @param path Gets the file of a number
+     * @return The numbers in access order
+     * @see #accessOrder(List, Function)
+     */
+    public static int[] accessOrder(int count, IntFunction<String> path) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        if (!storageClass.isLocationOrder()) {
+            return order;
+        }
+        long[] inodes = new long[count];
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = path.apply(i);
+            inodes[i] = inode(paths[i]);
+        }
+        sortByLocation(order, inodes, paths);
+        return order;
+    }
+
+    /**
+     * Stable merge sort of file numbers by inode, then by path
+     */
+    private static void sortByLocation(int[] order, long[] inodes, String[] paths) {
+        int[] merged = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int from = 0; from < order.length; from += 2 * width) {
+                int middle = Math.min(from + width, order.length);
+                int to = Math.min(from + 2 * width, order.length);
+                int left = from;
+                int right = middle;
+                for (int out = from; out < to; out++) {
+                    boolean takeRight = left == middle || (right < to && isBefore(order[right], order[left], inodes, paths));
+                    merged[out] = takeRight ? order[right++] : order[left++];
+                }
+            }
+            System.arraycopy(merged, 0, order, 0, order.length);
+        }
+    }
+
+    private static boolean isBefore(int a, int b, long[] inodes, String[] paths) {
+        return inodes[a] != inodes[b] ? inodes[a] < inodes[b] : paths[a].compareTo(paths[b]) < 0;
+    }
+
+    /**
+     * The inode of a file, or the largest value if it has none, so files still to be downloaded go last
+     */
+    private static long inode(String file) {
+        try {
+            return ((Number) Files.getAttribute(Paths.get(file), "unix:ino")).longValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Detect the storage class of a directory, or of its closest existing parent
+     */
+    public static StorageClass detect(Path directory) {
+        try {
+            Path existing = directory.toAbsolutePath().normalize();
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            if (existing == null) {
+                return StorageClass.UNKNOWN;
+            }
+            existing = existing.toRealPath();
+
+            if (NETWORK_TYPES.contains(Files.getFileStore(existing).type().toLowerCase(Locale.ROOT))) {
+                return StorageClass.NETWORK;
+            }
+            Path mountInfo = Paths.get("/proc/self/mountinfo");
+            if (Files.isReadable(mountInfo)) {
+                return detectLinux(existing, Files.readAllLines(mountInfo));
+            }
+        } catch (IOException e) {
+            storageLogger.debug("Could not detect storage of {}: {}", directory, e.getMessage());
+        }
+        return StorageClass.UNKNOWN;
+    }
+
+    private record Mount(String device, String type, String source) {
+    }
+
+    /**
+     * Find the mount holding the directory, then ask sysfs whether its block device rotates
+     */
+    private static StorageClass detectLinux(Path directory, List<String> mounts) {
+        Mount best = null;
+        int bestLength = -1;
+        for (String line : mounts) {
+            // id parent major:minor root mount-point options [optional fields] - type source super-options
+            String[] fields = line.split(" ");
+            int separator = line.indexOf(" - ");
+            if (fields.length < 5 || separator < 0) {
+                continue;
+            }
+            String mountPoint = unescapeMountField(fields[4]);
+            // Later lines are mounted over earlier ones on the same point
+            if (directory.startsWith(mountPoint) && mountPoint.length() >= bestLength) {
+                String[] tail = line.substring(separator + 3).split(" ");
+                best = new Mount(fields[2], tail[0], tail.length > 1 ? unescapeMountField(tail[1]) : "");
+                bestLength = mountPoint.length();
+            }
+        }
+        if (best == null) {
+            return StorageClass.UNKNOWN;
+        }
+        if (NETWORK_TYPES.contains(best.type().toLowerCase(Locale.ROOT))) {
+            return StorageClass.NETWORK;
+        }
+
+        // File systems such as btrfs report an anonymous device number, fall back to the source device
+        Boolean rotational = readRotational(Paths.get("/sys/dev/block", best.device()));
+        if (rotational == null && best.source().startsWith("/dev/")) {
+            rotational = readRotational(Paths.get("/sys/class/block", Paths.get(best.source()).getFileName().toString()));
+        }
+        if (rotational == null) {
+            return StorageClass.UNKNOWN;
+        }
+        return rotational ? StorageClass.HDD : StorageClass.SSD;
+    }
+
+    /**
+     * Decode a mountinfo field, where the kernel writes space, tab, newline and backslash as \\ooo octal.
+     * The escapes stand for bytes, so names outside ASCII are decoded as UTF-8 afterwards.
+     */
+    private static String unescapeMountField(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(field.length());
+        byte[] raw = field.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] == '\\' && i + 3 < raw.length && isOctal(raw[i + 1]) && isOctal(raw[i + 2]) && isOctal(raw[i + 3])) {
+                bytes.write(((raw[i + 1] - '0') << 6) | ((raw[i + 2] - '0') << 3) | (raw[i + 3] - '0'));
+                i += 3;
+            } else {
+                bytes.write(raw[i]);
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static boolean isOctal(byte b) {
+        return b >= '0' && b <= '7';
+    }
+
+    /**
+     * Read queue/rotational of a block device; a partition has no queue of its own, its disk does
+     */
+    private static Boolean readRotational(Path device) {
+        try {
+            Path real = device.toRealPath();
+            for (Path candidate : new Path[]{real, real.getParent()}) {
+                Path flag = candidate.resolve("queue/rotational");
+                if (Files.isReadable(flag)) {
+                    return Files.readString(flag).trim().equals("1");
+                }
+            }
+        } catch (IOException e) {
+            // No such device, e.g. overlay or tmpfs
+        }
+        return null;
+    }
+}
@@ -0,0 +1,285 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Mark and sweep collection of the shared stores, assets/objects and libraries, which otherwise only
+ * grow as versions come and go. The mark phase reads every installed version and asset index in
+ * parallel into the set of live objects and library paths; the sweep removes or quarantines the
+ * rest. If any version cannot be read nothing is swept, since what it needs would be unknown.
+ */
+public class StoreCollector {
+    private static final String GAME_DIR = "./.minecraft";
+    private static final String PART_SUFFIX = ".part";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Logger collectorLogger = LogManager.getLogger();
+
+    /**
+     * What happens to unreferenced files
+     */
+    public enum Mode {
+        /** Only report them */
+        DRY_RUN,
+        /** Move them under .minecraft/quarantine, from where they can be put back */
+        QUARANTINE,
+        /** Delete them */
+        DELETE
+    }
+
+    /**
+     * Outcome of a collection
+     * @param versions Installed versions that were marked
+     * @param liveObjects Asset objects some version needs
+     * @param liveLibraries Library files some version needs
+     * @param files Unreferenced files found
+     * @param bytes Their total size
+     */
+    public record Report(int versions, int liveObjects, int liveLibraries, int files, long bytes) {
+    }
+
+    private record LiveSet(Set<String> objects, Set<String> libraries, Set<String> assetIndexes) {
+    }
+
+    /**
+     * Collect unreferenced files. Nothing may be downloading into the stores while this runs.
+     * @throws IOException If a version or asset index cannot be read, in which case nothing is touched
+     */
+    public static Report collect(Mode mode) throws IOException {
+        Path gameDir = Paths.get(GAME_DIR).toAbsolutePath().normalize();
+        List<Path> versionJsons = findVersionJsons(gameDir.resolve("versions"));
+
+        long start = System.nanoTime();
+        LiveSet live = mark(gameDir, versionJsons);
+        collectorLogger.info("Marked {} asset objects and {} libraries of {} versions in {} ms",
+                live.objects().size(), live.libraries().size(), versionJsons.size(), (System.nanoTime() - start) / 1_000_000);
+
+        List<Path> garbage = new ArrayList<>();
+        Path objects = gameDir.resolve("assets/objects");
+        Path indexes = gameDir.resolve("assets/indexes");
+        Path libraries = gameDir.resolve("libraries");
+        for (Path file : listFiles(objects)) {
+            if (!live.objects().contains(stripPart(file.getFileName().toString()))) {
+                garbage.add(file);
+            }
+        }
+        for (Path file : listFiles(indexes)) {
+            String name = stripPart(file.getFileName().toString());
+            if (!name.endsWith(".json") || !live.assetIndexes().contains(name.substring(0, name.length() - 5))) {
+                garbage.add(file);
+            }
+        }
+        for (Path file : listFiles(libraries)) {
+            String relative = libraries.relativize(file).toString().replace(File.separatorChar, '/');
+            if (!live.libraries().contains(stripPart(relative))) {
+                garbage.add(file);
+            }
+        }
+
+        long bytes = 0;
+        for (Path file : garbage) {
+            bytes += Files.size(file);
+        }
+        Report report = new Report(versionJsons.size(), live.objects().size(), live.libraries().size(), garbage.size(), bytes);
+
+        if (mode == Mode.DRY_RUN) {
+            garbage.forEach(file -> collectorLogger.info("Unreferenced: {}", gameDir.relativize(file)));
+            collectorLogger.info("Dry run: {} unreferenced files, {} MB reclaimable", garbage.size(), bytes >> 20);
+            return report;
+        }
+        sweep(gameDir, garbage, mode, libraries);
+        collectorLogger.info(mode == Mode.QUARANTINE ? "Quarantined {} unreferenced files ({} MB)"
+                : "Deleted {} unreferenced files, {} MB reclaimed", garbage.size(), bytes >> 20);
+        return report;
+    }
+
+    private static List<Path> findVersionJsons(Path versionsDir) {
+        List<Path> versionJsons = new ArrayList<>();
+        File[] versionFolders = versionsDir.toFile().listFiles(File::isDirectory);
+        if (versionFolders != null) {
+            for (File versionFolder : versionFolders) {
+                File versionJson = new File(versionFolder, versionFolder.getName() + ".json");
+                if (versionJson.exists()) {
+                    versionJsons.add(versionJson.toPath());
+                }
+            }
+        }
+        return versionJsons;
+    }
+
+    /**
+     * Read the versions, then their asset indexes, each on its own thread
+     */
+    private static LiveSet mark(Path gameDir, List<Path> versionJsons) throws IOException {
+        LiveSet live = new LiveSet(ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Path versionJson : versionJsons) {
+                futures.add(executor.submit(() -> {
+                    markVersion(objectMapper.readTree(versionJson.toFile()), live);
+                    return null;
+                }));
+            }
+            await(futures);
+
+            futures.clear();
+            for (String assetIndex : live.assetIndexes()) {
+                Path indexPath = gameDir.resolve("assets/indexes/" + assetIndex + ".json");
+                futures.add(executor.submit(() -> {
+                    if (!Files.exists(indexPath)) {
+                        // Its objects cannot be told apart from garbage until it is downloaded again
+                        throw new IOException("Asset index " + assetIndex + " is missing, validate the versions first");
+                    }
+                    AssetIndex index = AssetIndex.parse(indexPath.toString());
+                    for (int i = 0; i < index.count(); i++) {
+                        live.objects().add(index.hash(i));
+                    }
+                    return null;
+                }));
+            }
+            await(futures);
+        }
+        return live;
+    }
+
+    /**
+     * Mark every library a version lists, for every platform, since the sweep must not depend on the
+     * machine it runs on
+     */
+    private static void markVersion(JsonNode versionJson, LiveSet live) {
+        if (versionJson.has("assetIndex")) {
+            live.assetIndexes().add(versionJson.path("assets").asText(versionJson.get("assetIndex").path("id").asText()));
+        } else if (versionJson.has("assets")) {
+            live.assetIndexes().add(versionJson.get("assets").asText());
+        }
+
+        for (JsonNode library : versionJson.path("libraries")) {
+            JsonNode downloads = library.path("downloads");
+            if (downloads.path("artifact").has("path")) {
+                live.libraries().add(downloads.get("artifact").get("path").asText());
+            }
+            for (JsonNode classifier : downloads.path("classifiers")) {
+                if (classifier.has("path")) {
+                    live.libraries().add(classifier.get("path").asText());
+                }
+            }
+            // Libraries without download info, as mod loaders list them, live at their Maven path
+            if (library.has("name")) {
+                live.libraries().add(mavenPath(library.get("name").asText(), null));
+                Iterator<Map.Entry<String, JsonNode>> natives = library.path("natives").fields();
+                while (natives.hasNext()) {
+                    String classifier = natives.next().getValue().asText();
+                    live.libraries().add(mavenPath(library.get("name").asText(), classifier.replace("${arch}", "32")));
+                    live.libraries().add(mavenPath(library.get("name").asText(), classifier.replace("${arch}", "64")));
+                }
+            }
+        }
+    }
+
+    /**
+     * Turn group:artifact:version[:classifier][@extension] into its path in a Maven repository
+     */
+    private static String mavenPath(String name, String classifier) {
+        String extension = "jar";
+        int at = name.indexOf('@');
+        if (at >= 0) {
+            extension = name.substring(at + 1);
+            name = name.substring(0, at);
+        }
+        String[] parts = name.split(":");
+        if (parts.length < 3) {
+            return name;
+        }
+        if (classifier == null && parts.length > 3) {
+            classifier = parts[3];
+        }
+        return parts[0].replace('.', '/') + "/" + parts[1] + "/" + parts[2] + "/" + parts[1] + "-" + parts[2]
+                + (classifier != null ? "-" + classifier : "") + "." + extension;
+    }
+
+    private static void await(List<Future<?>> futures) throws IOException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while marking");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static List<Path> listFiles(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).toList();
+        }
+    }
+
+    private static String stripPart(String name) {
+        return name.endsWith(PART_SUFFIX) ? name.substring(0, name.length() - PART_SUFFIX.length()) : name;
+    }
+
+    private static void sweep(Path gameDir, List<Path> garbage, Mode mode, Path libraries) throws IOException {
+        Path quarantine = gameDir.resolve("quarantine")
+                .resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+        for (Path file : garbage) {
+            if (mode == Mode.QUARANTINE) {
+                Path target = quarantine.resolve(gameDir.relativize(file));
+                Files.createDirectories(target.getParent());
+                Files.move(file, target);
+            } else {
+                Files.delete(file);
+            }
+            VerificationIndex.forget(file);
+            pruneEmptyParents(file.getParent(), libraries);
+        }
+        if (!garbage.isEmpty()) {
+            // A synced index no version uses any more may have lost its objects
+            AssetSync.invalidateAll();
+        }
+        if (mode == Mode.QUARANTINE && !garbage.isEmpty()) {
+            collectorLogger.info("Quarantined files are in {}", quarantine);
+        }
+    }
+
+    /**
+     * Remove directories of the library tree left empty, up to its root
+     */
+    private static void pruneEmptyParents(Path directory, Path root) throws IOException {
+        while (directory != null && directory.startsWith(root) && !directory.equals(root)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                if (entries.iterator().hasNext()) {
+                    return;
+                }
+            }
+            Files.delete(directory);
+            directory = directory.getParent();
+        }
+    }
+}
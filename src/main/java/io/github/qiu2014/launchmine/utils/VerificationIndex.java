@@ -0,0 +1,167 @@
+package io.github.qiu2014.launchmine.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Remembers which files have been verified against which SHA-1.
+ * An entry holds the size, modification time and file key (the inode on Linux) the file had when
+ * it was hashed; as long as none of them changed the file is trusted without reading it again.
+ * In xattr mode the entry is stored on the file itself as a user attribute instead of in the index file.
+ */
+public class VerificationIndex {
+    private static final String XATTR_NAME = "launchmine.sha1";
+    /** A file changed within this long of its mtime tick on a coarse file system looks unchanged */
+    private static final long RACY_WINDOW_MS = 2000;
+
+    private static Logger indexLogger = LogManager.getLogger();
+    /** Verifying thousands of assets records thousands of entries, they are written out together */
+    private static final PersistentJsonMap<Entry> entries =
+            new PersistentJsonMap<>("verification_index.json", "verification index", new TypeReference<>() {});
+    private static volatile boolean useXattr = false;
+
+    /**
+     * The state of a file when it was verified
+     * @param sha1 The SHA-1 the file matched
+     * @param size Size in bytes
+     * @param modified Modification time in milliseconds
+     * @param fileKey The file key of the file system, null where there is none
+     * @param verifiedAt When the file was hashed, in milliseconds
+     */
+    public record Entry(String sha1, long size, long modified, String fileKey, long verifiedAt) {
+    }
+
+    /**
+     * Store verification results as extended attributes on the files where the file system allows it
+     */
+    public static void setUseXattr(boolean enabled) {
+        useXattr = enabled;
+        if (enabled) {
+            indexLogger.info("Storing verification results in extended attributes");
+        }
+    }
+
+    /**
+     * Whether the file was verified against the SHA-1 and has not changed since
+     */
+    public static boolean isVerified(Path file, String sha1) {
+        return lastVerified(file, sha1) > 0;
+    }
+
+    /**
+     * When the file was last verified against the SHA-1
+     * @return Milliseconds since the epoch, 0 if it was not or has changed since
+     */
+    public static long lastVerified(Path file, String sha1) {
+        if (sha1 == null) {
+            return 0;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            Entry entry = useXattr ? readXattr(file) : lookup(file);
+            boolean valid = entry != null
+                    && entry.sha1().equalsIgnoreCase(sha1)
+                    && entry.size() == attributes.size()
+                    && entry.modified() == attributes.lastModifiedTime().toMillis()
+                    && (useXattr || String.valueOf(attributes.fileKey()).equals(String.valueOf(entry.fileKey())))
+                    && !isRacy(entry);
+            return valid ? entry.verifiedAt() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Record that the file has just been found to match the SHA-1
+     */
+    public static void record(Path file, String sha1) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            Entry entry = new Entry(sha1.toLowerCase(), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    attributes.fileKey() != null ? attributes.fileKey().toString() : null,
+                    System.currentTimeMillis());
+            if (useXattr && writeXattr(file, entry)) {
+                return;
+            }
+            entries.putLater(key(file), entry);
+        } catch (IOException e) {
+            indexLogger.debug("Could not record verification of {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Forget a file, after it was deleted or found corrupt
+     */
+    public static void forget(Path file) {
+        // Removed whatever the mode, the attribute may have been written before xattr mode was turned off
+        removeXattr(file);
+        entries.removeLater(key(file));
+    }
+
+    /**
+     * A file system with one or two second timestamps cannot tell a file rewritten right after it
+     * was hashed from the hashed one, so such entries are checked once more
+     */
+    private static boolean isRacy(Entry entry) {
+        return entry.modified() % 1000 == 0 && entry.verifiedAt() - entry.modified() < RACY_WINDOW_MS;
+    }
+
+    private static Entry lookup(Path file) {
+        return entries.get(key(file));
+    }
+
+    private static Entry readXattr(Path file) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+            if (view == null || !view.list().contains(XATTR_NAME)) {
+                // Fall back to the index for files recorded before xattr mode or on other file systems
+                return lookup(file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(view.size(XATTR_NAME));
+            view.read(XATTR_NAME, buffer);
+            String[] fields = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).split(":");
+            return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), null, Long.parseLong(fields[3]));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean writeXattr(Path file, Entry entry) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+            if (view == null) {
+                return false;
+            }
+            String value = entry.sha1() + ":" + entry.size() + ":" + entry.modified() + ":" + entry.verifiedAt();
+            view.write(XATTR_NAME, ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII)));
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Not every file system takes user attributes
+            return false;
+        }
+    }
+
+    private static void removeXattr(Path file) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+            if (view != null && view.list().contains(XATTR_NAME)) {
+                view.delete(XATTR_NAME);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // Gone with the file, or never written on this file system
+        }
+    }
+
+    private static String key(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+}